@@ -0,0 +1,37 @@
+package android.bluetooth;
+
+/**
+ * JVM中使用的BluetoothDevice，android-all中的实现在类初始化时依赖native的Binder，无法在JMH中创建
+ *
+ * @author Agua.L
+ */
+public final class BluetoothDevice {
+    private final String address;
+
+    public BluetoothDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice && ((BluetoothDevice) o).address.equals(address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
@@ -0,0 +1,74 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bleex.BleLogger;
+import com.bleex.helpers.BytesReceiver;
+import com.bleex.helpers.TimeoutWheel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长数据写入的重组，每次操作接收一组预先分好的包
+ *
+ * @author Agua.L
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BytesReceiverBenchmark {
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+
+    @Param({"23", "185", "247", "512"})
+    public int mtu;
+
+    @Param({"100", "1024", "16384", "1048576"})
+    public int payload;
+
+    private BluetoothDevice device;
+    private TimeoutWheel timeoutWheel;
+    private byte[][] packages;
+
+    @Setup
+    public void setUp() {
+        BleLogger.enable = false;
+        device = new BluetoothDevice("11:22:33:44:55:66");
+        timeoutWheel = new TimeoutWheel(100, 256);
+        byte[] data = new byte[payload];
+        new Random(2).nextBytes(data);
+        packages = Packets.frameWriteLarge((byte) 1, data, mtu - 3);
+    }
+
+    @TearDown
+    public void tearDown() {
+        timeoutWheel.stop();
+    }
+
+    @Benchmark
+    public void reassemble(Blackhole blackhole) {
+        BytesReceiver receiver = new BytesReceiver(BytesReceiver.createKey(1, 1, 1), 1, 1, device, SERVICE, CHARACTERISTIC, timeoutWheel);
+        receiver.setCallback(new BytesReceiver.BytesReceiveCallback() {
+            @Override
+            public void onReceive(BluetoothDevice device, UUID service, UUID characteristic, int requestId, byte[] data) {
+                blackhole.consume(data);
+            }
+        });
+        for (byte[] pack : packages) {
+            receiver.addPackage(pack);
+        }
+    }
+}
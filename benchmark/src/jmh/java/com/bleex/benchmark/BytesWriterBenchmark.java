@@ -0,0 +1,66 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bleex.BleLogger;
+import com.bleex.helpers.BufferPool;
+import com.bleex.helpers.BytesWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长数据指示的分包，每次操作完成一次完整的分包与发送确认
+ *
+ * @author Agua.L
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BytesWriterBenchmark {
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff5-0000-1000-8000-00805f9b34fb");
+
+    @Param({"23", "185", "247", "512"})
+    public int mtu;
+
+    @Param({"100", "1024", "16384", "1048576"})
+    public int payload;
+
+    private BluetoothDevice device;
+    private BufferPool bufferPool;
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        BleLogger.enable = false;
+        device = new BluetoothDevice("11:22:33:44:55:66");
+        bufferPool = new BufferPool(64, 256 * 1024);
+        data = new byte[payload];
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    public int fragment() {
+        BytesWriter writer = new BytesWriter(1, 1, mtu - 3, BytesWriter.createKey(1, 1, 1), device, SERVICE, CHARACTERISTIC, bufferPool);
+        writer.writeBytes(data);
+        int packages = 0;
+        while (writer.hasNextPackage()) {
+            byte[] pack = writer.nextPackage();
+            //模拟协议栈确认发出
+            writer.onPackageSent(pack);
+            packages++;
+        }
+        return packages;
+    }
+}
@@ -0,0 +1,59 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单包写入从协议栈回调到业务处理的派发，包括普通写入与有应答的请求
+ *
+ * @author Agua.L
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+    @Param({"23", "185", "247", "512"})
+    public int mtu;
+
+    private ServicesFixture fixture;
+    private BluetoothGattCharacteristic plain;
+    private BluetoothGattCharacteristic request;
+    private byte[] value;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ServicesFixture(mtu);
+        plain = fixture.getCharacteristic(ServicesFixture.PLAIN);
+        request = fixture.getCharacteristic(ServicesFixture.REQUEST);
+        value = new byte[mtu - 3];
+        new Random(3).nextBytes(value);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.dispose();
+    }
+
+    @Benchmark
+    public void write() {
+        fixture.transport.write(fixture.device, plain, value);
+    }
+
+    @Benchmark
+    public void request() {
+        fixture.transport.write(fixture.device, request, value);
+        fixture.transport.drain();
+    }
+}
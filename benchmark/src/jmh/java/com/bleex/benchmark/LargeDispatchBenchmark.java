@@ -0,0 +1,69 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长数据写入与长请求的完整派发，长请求包括接收重组、应答的分包以及所有分包的发送确认
+ *
+ * @author Agua.L
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LargeDispatchBenchmark {
+    @Param({"23", "185", "247", "512"})
+    public int mtu;
+
+    @Param({"100", "1024", "16384", "1048576"})
+    public int payload;
+
+    private ServicesFixture fixture;
+    private BluetoothGattCharacteristic writeLarge;
+    private BluetoothGattCharacteristic requestLarge;
+    private byte[][] writePackages;
+    private byte[][] requestPackages;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new ServicesFixture(mtu);
+        writeLarge = fixture.getCharacteristic(ServicesFixture.WRITE_LARGE);
+        requestLarge = fixture.getCharacteristic(ServicesFixture.REQUEST_LARGE);
+        byte[] data = new byte[payload];
+        new Random(4).nextBytes(data);
+        writePackages = Packets.frameWriteLarge((byte) 1, data, mtu - 3);
+        requestPackages = Packets.frameRequestLarge((byte) 2, (byte) 1, data, mtu - 3);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.dispose();
+    }
+
+    @Benchmark
+    public void writeLarge() {
+        for (byte[] pack : writePackages) {
+            fixture.transport.write(fixture.device, writeLarge, pack);
+        }
+    }
+
+    @Benchmark
+    public void requestLarge() {
+        for (byte[] pack : requestPackages) {
+            fixture.transport.write(fixture.device, requestLarge, pack);
+        }
+        fixture.transport.drain();
+    }
+}
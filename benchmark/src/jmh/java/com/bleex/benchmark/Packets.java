@@ -0,0 +1,61 @@
+package com.bleex.benchmark;
+
+import com.bleex.consts.DataTags;
+import com.bleex.utils.BytesUtil;
+
+/**
+ * 按照中心设备的方式对长数据进行分包
+ *
+ * @author Agua.L
+ */
+public class Packets {
+    /**
+     * 将数据按长写入的格式分包
+     *
+     * @param index       写入的索引
+     * @param data        数据内容
+     * @param packageSize 每个包的最大长度，即mtu-3
+     * @return
+     */
+    public static byte[][] frameWriteLarge(byte index, byte[] data, int packageSize) {
+        int start = Math.min(packageSize - 11, data.length);
+        int packageNum = 1 + (data.length - start + packageSize - 6) / (packageSize - 5);
+        byte[][] packages = new byte[packageNum][];
+        byte[] first = new byte[start + 11];
+        first[0] = index;
+        first[1] = DataTags.MS_WRITE_LARGE[0];
+        first[2] = DataTags.MS_WRITE_LARGE[1];
+        BytesUtil.writeInt(first, 3, data.length);
+        BytesUtil.writeInt(first, 7, packageNum);
+        System.arraycopy(data, 0, first, 11, start);
+        packages[0] = first;
+        for (int i = 1; i < packageNum; i++) {
+            int end = Math.min(start + packageSize - 5, data.length);
+            byte[] pack = new byte[end - start + 5];
+            pack[0] = index;
+            BytesUtil.writeInt(pack, 1, i);
+            System.arraycopy(data, start, pack, 5, end - start);
+            packages[i] = pack;
+            start = end;
+        }
+        return packages;
+    }
+
+    /**
+     * 将请求内容按长请求的格式包装，再按长写入的格式分包
+     *
+     * @param index       写入的索引
+     * @param requestId   请求id
+     * @param data        请求内容
+     * @param packageSize 每个包的最大长度，即mtu-3
+     * @return
+     */
+    public static byte[][] frameRequestLarge(byte index, byte requestId, byte[] data, int packageSize) {
+        byte[] request = new byte[data.length + 3];
+        request[0] = DataTags.MS_REQUEST_LARGE[0];
+        request[1] = DataTags.MS_REQUEST_LARGE[1];
+        request[2] = requestId;
+        System.arraycopy(data, 0, request, 3, data.length);
+        return frameWriteLarge(index, request, packageSize);
+    }
+}
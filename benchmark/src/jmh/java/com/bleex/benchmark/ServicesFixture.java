@@ -0,0 +1,71 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bleex.BleCentralDeviceBase;
+import com.bleex.BleLogger;
+import com.bleex.BleServicesBase;
+
+import java.util.UUID;
+
+/**
+ * 基于{@link SinkTransport}搭建的服务，包含各种角色的特征以及一个已连接的中心设备
+ *
+ * @author Agua.L
+ */
+public class ServicesFixture {
+    public static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    public static final UUID PLAIN = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    public static final UUID REQUEST = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    public static final UUID REQUEST_LARGE = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+    public static final UUID WRITE_LARGE = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+
+    public final SinkTransport transport = new SinkTransport();
+    public final BleServicesBase<BleCentralDeviceBase> services;
+    public final BluetoothDevice device = new BluetoothDevice("11:22:33:44:55:66");
+
+    /**
+     * 中心设备收到的写入与请求都会原样回应
+     */
+    class EchoDevice extends BleCentralDeviceBase {
+        EchoDevice(BluetoothDevice device, BleServicesBase services) {
+            super(device, services, null);
+        }
+
+        @Override
+        protected byte[] onRequest(UUID service, UUID characteristic, byte[] data) {
+            return data;
+        }
+
+        @Override
+        protected byte[] onRequestLarge(UUID service, UUID characteristic, byte[] data) {
+            return data;
+        }
+    }
+
+    public ServicesFixture(int mtu) throws Exception {
+        BleLogger.enable = false;
+        services = new BleServicesBase<BleCentralDeviceBase>(null, transport) {
+            @Override
+            protected BleCentralDeviceBase createCentralDevice(BluetoothDevice device) {
+                return new EchoDevice(device, this);
+            }
+        };
+        services.addService(SERVICE);
+        services.addCharacteristic(SERVICE, PLAIN, BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        services.addRequestCharacteristic(SERVICE, REQUEST);
+        services.addRequestLargeCharacteristic(SERVICE, REQUEST_LARGE);
+        services.addWriteLargeCharacteristic(SERVICE, WRITE_LARGE);
+        services.launch();
+        transport.connect(device, mtu);
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID characteristic) {
+        return transport.getCharacteristic(SERVICE, characteristic);
+    }
+
+    public void dispose() {
+        services.dispose();
+    }
+}
@@ -0,0 +1,160 @@
+package com.bleex.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import com.bleex.transport.GattServer;
+import com.bleex.transport.GattTransport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 丢弃所有输出的传输层，所有回调都在调用线程中同步触发。
+ * 通知的回馈不会立即发出，由{@link #drain()}依次补发，避免在发送管道内部重入。
+ *
+ * @author Agua.L
+ */
+public class SinkTransport implements GattTransport {
+    private final List<SinkServer> servers = new ArrayList<>();
+    private long notifiedBytes = 0;
+    private int requestId = 0;
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public GattServer openServer(BluetoothGattServerCallback callback) {
+        SinkServer server = new SinkServer(callback);
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * 模拟中心设备连接并协商MTU
+     *
+     * @param device
+     * @param mtu
+     */
+    public void connect(BluetoothDevice device, int mtu) {
+        for (SinkServer server : servers) {
+            server.callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            server.callback.onMtuChanged(device, mtu);
+        }
+    }
+
+    /**
+     * 得到已添加的特征，用于模拟写入
+     *
+     * @param service
+     * @param characteristic
+     * @return
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID service, UUID characteristic) {
+        for (SinkServer server : servers) {
+            BluetoothGattService gattService = server.services.get(service);
+            if (gattService != null) {
+                return gattService.getCharacteristic(characteristic);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 模拟中心设备的一次写入，与协议栈回调的入口相同
+     *
+     * @param device
+     * @param characteristic
+     * @param value
+     */
+    public void write(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+        UUID service = characteristic.getService().getUuid();
+        for (SinkServer server : servers) {
+            if (server.services.containsKey(service)) {
+                server.callback.onCharacteristicWriteRequest(device, ++requestId, characteristic, false, false, 0, value);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 依次补发所有通知的回馈，直到没有新的通知
+     */
+    public void drain() {
+        boolean pending = true;
+        while (pending) {
+            pending = false;
+            for (SinkServer server : servers) {
+                BluetoothDevice device = server.acks.poll();
+                if (device != null) {
+                    pending = true;
+                    server.callback.onNotificationSent(device, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        }
+    }
+
+    /**
+     * 累计通知出去的字节数
+     */
+    public long getNotifiedBytes() {
+        return notifiedBytes;
+    }
+
+    class SinkServer implements GattServer {
+        private final BluetoothGattServerCallback callback;
+        private final HashMap<UUID, BluetoothGattService> services = new HashMap<>();
+        private final ArrayDeque<BluetoothDevice> acks = new ArrayDeque<>();
+
+        SinkServer(BluetoothGattServerCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean addService(BluetoothGattService service) {
+            services.put(service.getUuid(), service);
+            return true;
+        }
+
+        @Override
+        public boolean removeService(BluetoothGattService service) {
+            return services.remove(service.getUuid()) != null;
+        }
+
+        @Override
+        public boolean connect(BluetoothDevice device, boolean autoConnect) {
+            return true;
+        }
+
+        @Override
+        public void cancelConnection(BluetoothDevice device) {
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+            notifiedBytes += characteristic.getValue().length;
+            acks.add(device);
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            services.clear();
+            acks.clear();
+        }
+    }
+}
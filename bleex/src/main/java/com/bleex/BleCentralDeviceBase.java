@@ -4,7 +4,16 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 
+import com.bleex.consts.OutboundPriority;
+import com.bleex.consts.ReceiveMode;
+import com.bleex.helpers.BytesWriter;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -15,11 +24,11 @@ import java.util.UUID;
 @SuppressLint("MissingPermission")
 public class BleCentralDeviceBase {
     private BluetoothDevice _device;
-    private BleServicesBase services;
+    private BleServicesBase<?> services;
     private Context _context;
     private String _address;
 
-    public BleCentralDeviceBase(BluetoothDevice device, BleServicesBase services, Context context) {
+    public BleCentralDeviceBase(BluetoothDevice device, BleServicesBase<?> services, Context context) {
         this._device = device;
         this.services = services;
         this._context = context;
@@ -51,13 +60,28 @@ public class BleCentralDeviceBase {
         return this._address;
     }
 
+    /**
+     * 该设备协商后的MTU
+     */
+    public int getMtu() {
+        return this.services.getMtu(this._device);
+    }
+
+    /**
+     * 该设备单个通知或指示可携带的最大数据长度
+     */
+    public int getPackageSize() {
+        return this.services.getPackageSize(this._device);
+    }
+
     public void onUpdateDevice(BluetoothDevice device) {
         this._device = device;
         //TODO 子类重写
     }
 
     /**
-     * 收到了读取数据，最大长度为mtu
+     * 收到了读取数据，超过mtu的部分由中心设备按偏移继续读取，
+     * 一次长读取只会调用一次，之后的偏移读取从这次返回值的快照中截取
      *
      * @param characteristic
      * @param service
@@ -79,6 +103,20 @@ public class BleCentralDeviceBase {
         //TODO 子类重写
     }
 
+    /**
+     * 收到了数据流特征的一批写入数据，在工作线程中按到达顺序调用，默认逐个交给onWrite
+     *
+     * @param service
+     * @param characteristic
+     * @param values         按到达顺序排列的数据
+     * @param timestamps     每个数据到达时的System.nanoTime()
+     */
+    protected void onWriteBatch(UUID service, UUID characteristic, List<byte[]> values, long[] timestamps) {
+        for (byte[] value : values) {
+            onWrite(service, characteristic, value);
+        }
+    }
+
     /**
      * 收到了长数据的写入
      *
@@ -90,6 +128,43 @@ public class BleCentralDeviceBase {
         //TODO 子类重写
     }
 
+    /**
+     * 以{@link ReceiveMode#SPILL}方式收到了超过阈值的长数据，数据在内存映射的临时文件中，
+     * 默认复制为byte[]后交给onWriteLarge，重写后才能避免占用堆内存
+     *
+     * @param service
+     * @param characteristic
+     * @param data           只读的映射缓冲
+     */
+    protected void onWriteLarge(UUID service, UUID characteristic, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        onWriteLarge(service, characteristic, bytes);
+    }
+
+    /**
+     * 以{@link ReceiveMode#STREAMING}方式收到了长数据的一个分块，offset + chunk.remaining() == length 时接收完成
+     *
+     * @param service
+     * @param characteristic
+     * @param offset         分块在整个数据中的偏移
+     * @param chunk          分块数据的只读视图，只在回调期间有效
+     * @param length         数据总长度
+     */
+    protected void onWriteLargeChunk(UUID service, UUID characteristic, int offset, ByteBuffer chunk, int length) {
+        //TODO 子类重写
+    }
+
+    /**
+     * 长数据写入出错或超时，流式接收时已经收到的分块应当丢弃
+     *
+     * @param service
+     * @param characteristic
+     */
+    protected void onWriteLargeFailed(UUID service, UUID characteristic) {
+        //TODO 子类重写
+    }
+
 
     /**
      * 收到了有应答的请求，最大长度为mtu
@@ -117,18 +192,47 @@ public class BleCentralDeviceBase {
         return new byte[]{0};
     }
 
+    /**
+     * 收到了有应答的请求的异步处理，返回的future完成时才会发出应答，不会阻塞蓝牙线程。
+     * 默认返回null，即使用同步的onRequest
+     *
+     * @param service
+     * @param characteristic
+     * @param data
+     * @return
+     */
+    protected CompletableFuture<byte[]> onRequestAsync(UUID service, UUID characteristic, byte[] data) {
+        //TODO 子类重写
+        return null;
+    }
+
+    /**
+     * 收到了有应答的长数据请求的异步处理，返回的future完成时才会发出应答，不会阻塞蓝牙线程。
+     * 默认返回null，即使用同步的onRequestLarge
+     *
+     * @param service
+     * @param characteristic
+     * @param data
+     * @return
+     */
+    protected CompletableFuture<byte[]> onRequestLargeAsync(UUID service, UUID characteristic, byte[] data) {
+        //TODO 子类重写
+        return null;
+    }
+
     /**
      * 通知到某一个特征，最大长度为mtu，有丢包概率
      *
      * @param service
      * @param characteristic
      * @param data
+     * @return 排队发出并得到协议栈的回馈后完成
      */
-    public void notify(UUID service, UUID characteristic, byte[] data) throws Exception {
+    public CompletableFuture<Void> notify(UUID service, UUID characteristic, byte[] data) throws Exception {
         if (isDisposed) {
             throw new Exception("Can not call notify after device disposed.");
         }
-        this.services.notifyCharacteristicChanged(this.getDevice(), service, characteristic, data, false);
+        return this.services.sendNotification(this.getDevice(), service, characteristic, data, false);
     }
 
     /**
@@ -137,12 +241,13 @@ public class BleCentralDeviceBase {
      * @param service
      * @param characteristic
      * @param data
+     * @return 排队发出并得到协议栈的回馈后完成
      */
-    public void indicate(UUID service, UUID characteristic, byte[] data) throws Exception {
+    public CompletableFuture<Void> indicate(UUID service, UUID characteristic, byte[] data) throws Exception {
         if (isDisposed) {
             throw new Exception("Can not call indicate after device disposed.");
         }
-        this.services.notifyCharacteristicChanged(this.getDevice(), service, characteristic, data, true);
+        return this.services.sendNotification(this.getDevice(), service, characteristic, data, true);
     }
 
     /**
@@ -151,12 +256,81 @@ public class BleCentralDeviceBase {
      * @param service
      * @param characteristic
      * @param data
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(UUID service, UUID characteristic, byte[] data) throws Exception {
+        if (isDisposed) {
+            throw new Exception("Can not call indicateLarge after device disposed.");
+        }
+        return this.services.indicateLarge(this.getDevice(), service, characteristic, data);
+    }
+
+    /**
+     * 以指定的优先级指示长数据到某一个特征，高优先级的长数据会按权重在低优先级的长数据分包之间插队发出
+     *
+     * @param service
+     * @param characteristic
+     * @param data
+     * @param priority
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(UUID service, UUID characteristic, byte[] data, OutboundPriority priority) throws Exception {
+        if (isDisposed) {
+            throw new Exception("Can not call indicateLarge after device disposed.");
+        }
+        return this.services.indicateLarge(this.getDevice(), service, characteristic, data, priority);
+    }
+
+    /**
+     * 从输入流中流式指示长数据到某一个特征，只有在途的分包驻留在内存中，发送结束或失败后流会被关闭
+     *
+     * @param service
+     * @param characteristic
+     * @param stream
+     * @param length         数据总长度
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
      */
-    public void indicateLarge(UUID service, UUID characteristic, byte[] data) throws Exception {
+    public CompletableFuture<BytesWriter> indicateLarge(UUID service, UUID characteristic, InputStream stream, int length) throws Exception {
         if (isDisposed) {
             throw new Exception("Can not call indicateLarge after device disposed.");
         }
-        this.services.indicateLarge(this.getDevice(), service, characteristic, data);
+        return this.services.indicateLarge(this.getDevice(), service, characteristic, stream, length);
+    }
+
+    /**
+     * 从通道中流式指示长数据到某一个特征，只有在途的分包驻留在内存中，发送结束或失败后通道会被关闭
+     *
+     * @param service
+     * @param characteristic
+     * @param channel
+     * @param length         数据总长度
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(UUID service, UUID characteristic, ReadableByteChannel channel, int length) throws Exception {
+        if (isDisposed) {
+            throw new Exception("Can not call indicateLarge after device disposed.");
+        }
+        return this.services.indicateLarge(this.getDevice(), service, characteristic, channel, length);
+    }
+
+    /**
+     * 特征值已经改变，使该设备正在进行的长读取失效，之后的偏移读取会重新调用onRead
+     *
+     * @param service
+     * @param characteristic
+     */
+    public void invalidateRead(UUID service, UUID characteristic) {
+        this.services.invalidateRead(this.getDevice(), service, characteristic);
+    }
+
+    /**
+     * 特征值对该设备已经改变，使该设备的读缓存以及正在进行的长读取失效
+     *
+     * @param service
+     * @param characteristic
+     */
+    public void invalidate(UUID service, UUID characteristic) {
+        this.services.invalidate(this.getDevice(), service, characteristic);
     }
 
     /**
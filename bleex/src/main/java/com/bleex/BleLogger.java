@@ -2,13 +2,41 @@ package com.bleex;
 
 import android.util.Log;
 
+import com.bleex.utils.BytesUtil;
+
 /**
- * Ble内部日志输出工具
+ * Ble内部日志输出工具。
+ * 高频调用处应先通过{@link #isEnabled(int)}判断再拼接日志，关闭的级别只有一次判断的开销。
  *
  * @author Agua.L
  */
 public class BleLogger {
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+
     public static boolean enable = true;
+    /**
+     * 输出的最低级别，默认为{@link #INFO}。
+     * 读写请求的回调与长数据收发完成等每次传输的日志为{@link #DEBUG}，通知的发送与回馈为{@link #TRACE}，默认不输出，需要时可以调低级别
+     */
+    public static int level = INFO;
+    /**
+     * 输出二进制内容时最多输出的字节数
+     */
+    public static int maxDumpLength = 32;
+
+    /**
+     * 指定级别是否会输出
+     *
+     * @param level
+     * @return
+     */
+    public static boolean isEnabled(int level) {
+        return enable && level >= BleLogger.level;
+    }
+
     /**
      * ble内容输出
      *
@@ -16,8 +44,44 @@ public class BleLogger {
      * @param msg
      */
     public static void log(String tag, String msg) {
-        if(enable){
-            Log.i("[BleLog: " + tag + "]", msg);
+        log(INFO, tag, msg);
+    }
+
+    /**
+     * 按级别输出
+     *
+     * @param level
+     * @param tag
+     * @param msg
+     */
+    public static void log(int level, String tag, String msg) {
+        if (!isEnabled(level)) {
+            return;
         }
+        String logTag = "[BleLog: " + tag + "]";
+        switch (level) {
+            case TRACE:
+                Log.v(logTag, msg);
+                break;
+            case DEBUG:
+                Log.d(logTag, msg);
+                break;
+            case WARN:
+                Log.w(logTag, msg);
+                break;
+            default:
+                Log.i(logTag, msg);
+                break;
+        }
+    }
+
+    /**
+     * 二进制内容的日志表示，超过{@link #maxDumpLength}的部分会被截断
+     *
+     * @param bytes
+     * @return
+     */
+    public static String dump(byte[] bytes) {
+        return BytesUtil.bytesToString(bytes, false, maxDumpLength);
     }
 }
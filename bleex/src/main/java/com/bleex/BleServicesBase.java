@@ -6,10 +6,8 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
@@ -21,17 +19,57 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.ParcelUuid;
 
+import com.bleex.consts.CacheScope;
+import com.bleex.consts.CharacteristicRole;
 import com.bleex.consts.DataTags;
+import com.bleex.consts.OutboundPriority;
+import com.bleex.consts.OverflowPolicy;
+import com.bleex.consts.ReceiveMode;
 import com.bleex.helpers.BytesReceiver;
+import com.bleex.helpers.BufferPool;
 import com.bleex.helpers.BytesWriter;
+import com.bleex.helpers.CentralSession;
+import com.bleex.helpers.CompressionStats;
+import com.bleex.helpers.IngestBuffer;
+import com.bleex.helpers.NotificationPacket;
+import com.bleex.helpers.OutboundScheduler;
+import com.bleex.helpers.PackageSender;
+import com.bleex.helpers.PreparedWrites;
+import com.bleex.helpers.ReadCache;
+import com.bleex.helpers.RequestIds;
+import com.bleex.helpers.TimeoutWheel;
+import com.bleex.helpers.TransferStore;
+import com.bleex.transport.AndroidGattTransport;
+import com.bleex.transport.GattServer;
+import com.bleex.transport.GattTransport;
 import com.bleex.utils.BytesUtil;
+import com.bleex.utils.DeflateUtil;
 
+import java.io.File;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * BleEx服务基类
@@ -42,33 +80,46 @@ import java.util.UUID;
 public class BleServicesBase<T extends BleCentralDeviceBase> {
     private static final String TAG = "BleServicesBase";
 
-    private BluetoothManager bluetoothManager;
+    private GattTransport transport;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeAdvertiser bluetoothLeAdvertiser; // BLE广播
     protected Context context;
 
     protected BleServicesBase self;
     BroadcastReceiver broadcastReceiver;
-    private int packageSize = 20;
+    private volatile int packageSize = CentralSession.DEFAULT_MTU - 3;
 
     /**
-     * 可发送的包大小
+     * 最近一次协商得到的可发送的包大小
+     *
+     * @deprecated 每个中心设备协商的MTU不同，使用{@link #getPackageSize(BluetoothDevice)}
      */
+    @Deprecated
     public int getPackageSize() {
         return packageSize;
     }
 
     public BleServicesBase(Context context) {
+        this(context, new AndroidGattTransport(context));
+    }
+
+    /**
+     * 使用指定的传输层创建服务，如使用LoopbackGattTransport在JVM中测试，此时context可以为null
+     *
+     * @param context
+     * @param transport
+     */
+    public BleServicesBase(Context context, GattTransport transport) {
         this.self = this;
         this.context = context;
+        this.transport = transport;
 
-        this.bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-        broadcastReceiver = new BluetoothStateBroadcastReceive();
-        IntentFilter intent = new IntentFilter();
-        intent.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-        context.registerReceiver(broadcastReceiver, intent);
+        if (context != null) {
+            broadcastReceiver = new BluetoothStateBroadcastReceive();
+            IntentFilter intent = new IntentFilter();
+            intent.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+            context.registerReceiver(broadcastReceiver, intent);
+        }
     }
 
     /**
@@ -77,9 +128,18 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     public void dispose() {
         stopAdvertising();
         stop();
-        bluetoothManager = null;
+        timeoutWheel.stop();
+        retainWheel.stop();
+        outboundScheduler.stop();
+        transferStore.clear();
+        readCache.clear();
+        shutdownIngestExecutor();
+        bufferPool.clear();
+        transport = null;
         bluetoothAdapter = null;
-        context.unregisterReceiver(broadcastReceiver);
+        if (context != null) {
+            context.unregisterReceiver(broadcastReceiver);
+        }
         broadcastReceiver = null;
         context = null;
         self = null;
@@ -103,10 +163,10 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     }
 
     public boolean isBluetoothEnable() {
-        return this.bluetoothAdapter.isEnabled();
+        return this.transport.isEnabled();
     }
 
-    private final List<BluetoothStateChangedCallback> bluetoothStateChangedCallbacks = new ArrayList<>();
+    private final List<BluetoothStateChangedCallback> bluetoothStateChangedCallbacks = new CopyOnWriteArrayList<>();
 
     /**
      * 添加蓝牙状态改变回调
@@ -136,38 +196,41 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     /* ------------------------------ 服务相关 ------------------------------ */
 
 
-    private HashMap<String, BluetoothGattServer> serverMap = null;
-    private final HashMap<String, ServicesCallback> serverCallbackMap = new HashMap<>();
-    private final HashMap<String, BluetoothGattService> serviceMap = new HashMap<>();
-    private final List<UUID> startedServiceUuids = new ArrayList<>();
+    private volatile ConcurrentHashMap<String, GattServer> serverMap = null;
+    private final ConcurrentHashMap<String, ServicesCallback> serverCallbackMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BluetoothGattService> serviceMap = new ConcurrentHashMap<>();
+    private final List<UUID> startedServiceUuids = new CopyOnWriteArrayList<>();
 
     private void ensureServer(UUID service) throws Exception {
+        ConcurrentHashMap<String, GattServer> serverMap = this.serverMap;
         if (serverMap == null) {
             throw new Exception("Unable to ensure server while stopping, you need to launch first.");
         }
-        if (!this.serverMap.containsKey(service.toString())) {
+        if (!serverMap.containsKey(service.toString())) {
             ServicesCallback callback = new ServicesCallback(service);
-            BluetoothGattServer server = bluetoothManager.openGattServer(context, callback);
+            GattServer server = transport.openServer(callback);
             callback.initServer(server);
-            this.serverMap.put(service.toString(), server);
+            serverMap.put(service.toString(), server);
             this.serverCallbackMap.put(service.toString(), callback);
             ensureMainServerCallback();
         }
     }
 
-    private BluetoothGattServer getServer(UUID service) throws Exception {
+    private GattServer getServer(UUID service) throws Exception {
+        ConcurrentHashMap<String, GattServer> serverMap = this.serverMap;
         if (serverMap == null) {
             throw new Exception("Unable to get server while stopping, you need to launch first.");
         }
-        BluetoothGattServer server = this.serverMap.get(service.toString());
+        GattServer server = serverMap.get(service.toString());
         return server;
     }
 
     private void removeServer(UUID service) throws Exception {
+        ConcurrentHashMap<String, GattServer> serverMap = this.serverMap;
         if (serverMap == null) {
             throw new Exception("Unable to get server while stopping, you need to launch first.");
         }
-        this.serverMap.remove(service.toString());
+        serverMap.remove(service.toString());
     }
 
     private void ensureMainServerCallback() {
@@ -202,9 +265,8 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             return;
         }
         running = true;
-        serverMap = new HashMap<>();
-        for (int i = 0; i < startedServiceUuids.size(); i++) {
-            UUID service = startedServiceUuids.get(i);
+        serverMap = new ConcurrentHashMap<>();
+        for (UUID service : startedServiceUuids) {
             this.doStartService(service);
         }
     }
@@ -217,10 +279,9 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             return;
         }
         running = false;
-        cleanAllReceivers();
+        cleanAllSessions();
         disconnectAll();
-        for (int i = 0; i < startedServiceUuids.size(); i++) {
-            UUID service = startedServiceUuids.get(i);
+        for (UUID service : startedServiceUuids) {
             try {
                 this.doCloseService(service);
             } catch (Exception e) {
@@ -240,7 +301,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     }
 
 
-    private List<UUID> services = new ArrayList<>();
+    private final List<UUID> services = new CopyOnWriteArrayList<>();
     /**
      * 添加并启动一个服务
      *
@@ -314,7 +375,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     private void doCloseService(UUID service) throws Exception {
         if (this.getIsRunning()) {
             BluetoothGattService serviceTarget = this.serviceMap.get(service.toString());
-            BluetoothGattServer server = getServer(service);
+            GattServer server = getServer(service);
             if (server != null) {
                 if (serviceTarget != null) {
                     server.removeService(serviceTarget);
@@ -392,6 +453,9 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
                     .addManufacturerData(2, scanManufacturerData)
                     .build();
         }
+        if (bluetoothAdapter == null) {
+            bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
         this.bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
         if (scanResponse != null) {
             bluetoothLeAdvertiser.startAdvertising(settings, advertiseData, scanResponse, this.advertiseCallback);
@@ -414,7 +478,14 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
 
     /* ------------------------------ 设备相关 ------------------------------ */
 
-    private final HashMap<String, T> deviceMap = new HashMap<>();
+    private final ConcurrentHashMap<String, T> deviceMap = new ConcurrentHashMap<>();
+    //设备列表的快照，只在设备增减时重建，读取时不需要复制
+    private volatile List<T> deviceSnapshot = Collections.emptyList();
+
+    //需要与设备的增减在同一个锁中调用，否则较早的快照可能最后被发布
+    private void updateDeviceSnapshot() {
+        deviceSnapshot = Collections.unmodifiableList(new ArrayList<>(deviceMap.values()));
+    }
 
     /**
      * 得到一个指定的设备
@@ -433,23 +504,20 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
      * @return
      */
     public T getDevice(String address) {
-        if (deviceMap.containsKey(address)) {
-            return deviceMap.get(address);
-        }
-        return null;
+        return deviceMap.get(address);
     }
 
     /**
-     * 得到所有已连接的设备列表
+     * 得到所有已连接的设备列表，返回的是只读的快照，不会随后续的连接与断开而变化
      *
      * @return
      */
     public List<T> getDevices() {
-        return new ArrayList<>(deviceMap.values());
+        return deviceSnapshot;
     }
 
 
-    private List<BleCentralDeviceChangedCallback<T>> deviceChangedCallbacks = new ArrayList<BleCentralDeviceChangedCallback<T>>();
+    private final List<BleCentralDeviceChangedCallback<T>> deviceChangedCallbacks = new CopyOnWriteArrayList<>();
 
     /**
      * 添加设备改变监听回调
@@ -515,7 +583,18 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             return;
         }
         T curDevice = (T) this.createCentralDevice(device);
-        deviceMap.put(device.getAddress(), curDevice);
+        boolean added;
+        synchronized (deviceMap) {
+            added = deviceMap.putIfAbsent(device.getAddress(), curDevice) == null;
+            if (added) {
+                updateDeviceSnapshot();
+            }
+        }
+        if (!added) {
+            //其他线程已经添加了该设备
+            curDevice.dispose();
+            return;
+        }
         for (BleCentralDeviceChangedCallback<T> callback : deviceChangedCallbacks) {
             callback.onAddDevice(curDevice);
         }
@@ -546,10 +625,15 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
      * @param device
      */
     protected void doRemoveDevice(BluetoothDevice device) {
-        T curDevice = deviceMap.get(device.getAddress());
+        T curDevice;
+        synchronized (deviceMap) {
+            curDevice = deviceMap.remove(device.getAddress());
+            if (curDevice != null) {
+                updateDeviceSnapshot();
+            }
+        }
         if (curDevice != null) {
             curDevice.dispose();
-            deviceMap.remove(device.getAddress());
             for (BleCentralDeviceChangedCallback<T> callback : deviceChangedCallbacks) {
                 callback.onRemoveDevice(curDevice);
             }
@@ -568,6 +652,197 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         return true;
     }
 
+    private volatile int notificationWindow = 1;
+    private volatile int preparedWriteLimit = 4096;
+    //各优先级的权重，下标为OutboundPriority.ordinal()，修改时整体替换
+    private volatile int[] outboundWeights = PackageSender.DEFAULT_WEIGHTS.clone();
+    //长数据分包与请求应答共用的缓冲池，最多保留256KB
+    private final BufferPool bufferPool = new BufferPool(64, 256 * 1024);
+    private final ConcurrentHashMap<String, CentralSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger sessionId = new AtomicInteger(0);
+    //所有设备的发送队列共用一个调度器，按设备轮询发出
+    private final OutboundScheduler outboundScheduler = new OutboundScheduler();
+
+    //只在连接建立时创建会话，其他地方只查找，设备断开后不会因为迟到的回调或发送又创建出来
+    private CentralSession openSession(BluetoothDevice device) {
+        CentralSession session = sessions.get(device.getAddress());
+        if (session == null) {
+            session = sessions.computeIfAbsent(device.getAddress(), address -> createSession(device));
+        }
+        return session;
+    }
+
+    //设备未连接时返回null
+    private CentralSession getSession(BluetoothDevice device) {
+        return sessions.get(device.getAddress());
+    }
+
+    private static <R> CompletableFuture<R> notConnected(BluetoothDevice device) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        future.completeExceptionally(new Exception("Device " + device.getAddress() + " is not connected."));
+        return future;
+    }
+
+    private CentralSession createSession(BluetoothDevice device) {
+        CentralSession session = new CentralSession(sessionId.incrementAndGet(), this, device, outboundScheduler, notificationWindow, retainWheel);
+        int[] weights = outboundWeights;
+        for (OutboundPriority priority : OutboundPriority.values()) {
+            session.getSender().setWeight(priority, weights[priority.ordinal()]);
+        }
+        return session;
+    }
+
+    private void removeSession(BluetoothDevice device) {
+        CentralSession session = sessions.remove(device.getAddress());
+        if (session != null) {
+            session.clear();
+            readCache.removeDevice(session.getId());
+        }
+    }
+
+    private void cleanAllSessions() {
+        for (String address : sessions.keySet()) {
+            CentralSession session = sessions.remove(address);
+            if (session != null) {
+                session.clear();
+            }
+        }
+    }
+
+    /**
+     * 得到某个设备协商后的MTU，未协商时为默认的23
+     *
+     * @param device
+     * @return
+     */
+    public int getMtu(BluetoothDevice device) {
+        CentralSession session = sessions.get(device.getAddress());
+        return session != null ? session.getMtu() : CentralSession.DEFAULT_MTU;
+    }
+
+    /**
+     * 得到某个设备单个通知或指示可携带的最大数据长度
+     *
+     * @param device
+     * @return
+     */
+    public int getPackageSize(BluetoothDevice device) {
+        return getMtu(device) - 3;
+    }
+
+    /**
+     * 设置每个中心设备同时在途的最大分包数，每收到一次onNotificationSent才会放行下一个分包
+     *
+     * @param window
+     */
+    public void setNotificationWindow(int window) {
+        notificationWindow = Math.max(1, window);
+        sessions.forEach((address, session) -> {
+            session.getSender().setWindow(notificationWindow);
+        });
+    }
+
+    /**
+     * 设置每个中心设备准备写入队列中所有值的总长度上限，默认为4096字节，超出时该段准备写入会被拒绝
+     *
+     * @param limit
+     */
+    public void setPreparedWriteLimit(int limit) {
+        preparedWriteLimit = limit;
+    }
+
+    /**
+     * 每个中心设备准备写入队列中所有值的总长度上限
+     */
+    public int getPreparedWriteLimit() {
+        return preparedWriteLimit;
+    }
+
+    /**
+     * 每个中心设备同时在途的最大分包数
+     */
+    public int getNotificationWindow() {
+        return notificationWindow;
+    }
+
+    /**
+     * 设置某个优先级在发送队列中的权重，即每一轮最多可以发出的分包数，默认CONTROL为8、RESPONSE为4、BULK为1。
+     * 有更高优先级的分包排队时，正在发送的长数据会按权重让出发送机会
+     *
+     * @param priority
+     * @param weight   最小为1
+     */
+    public void setOutboundWeight(OutboundPriority priority, int weight) {
+        int[] weights = outboundWeights.clone();
+        weights[priority.ordinal()] = Math.max(1, weight);
+        outboundWeights = weights;
+        sessions.forEach((address, session) -> {
+            session.getSender().setWeight(priority, weights[priority.ordinal()]);
+        });
+    }
+
+    /**
+     * 某个优先级在发送队列中的权重
+     *
+     * @param priority
+     * @return
+     */
+    public int getOutboundWeight(OutboundPriority priority) {
+        return outboundWeights[priority.ordinal()];
+    }
+
+    /**
+     * 某个设备发送队列中某个优先级已经发出的分包数
+     *
+     * @param device
+     * @param priority
+     * @return
+     */
+    public long getOutboundSentCount(BluetoothDevice device, OutboundPriority priority) {
+        CentralSession session = sessions.get(device.getAddress());
+        return session != null ? session.getSender().getSentCount(priority) : 0;
+    }
+
+    /**
+     * 某个设备发送队列中排队的操作个数，包括通知、指示、请求的应答与长数据
+     *
+     * @param device
+     * @return
+     */
+    public int getOutboundQueueDepth(BluetoothDevice device) {
+        CentralSession session = sessions.get(device.getAddress());
+        return session != null ? session.getSender().getPendingCount() : 0;
+    }
+
+    /**
+     * 某个设备发送队列中操作从排队到发出首包的平均等待时间，单位毫秒
+     *
+     * @param device
+     * @return
+     */
+    public long getOutboundWaitTime(BluetoothDevice device) {
+        CentralSession session = sessions.get(device.getAddress());
+        return session != null ? session.getSender().getAverageWaitTime() : 0;
+    }
+
+    /**
+     * 某个设备发送队列中操作从排队到发出首包的最长等待时间，单位毫秒
+     *
+     * @param device
+     * @return
+     */
+    public long getOutboundMaxWaitTime(BluetoothDevice device) {
+        CentralSession session = sessions.get(device.getAddress());
+        return session != null ? session.getSender().getMaxWaitTime() : 0;
+    }
+
+    /**
+     * 分包缓冲池，可以从中得到命中、未命中以及未归还的缓冲个数
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     /**
      * 取消连接某个设备
      *
@@ -595,8 +870,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
      * 取消连接所有的蓝牙设备
      */
     public void disconnectAll() {
-        List<T> devices = this.getDevices();
-        for (T device : devices) {
+        for (T device : deviceSnapshot) {
             this.disconnect(device);
         }
     }
@@ -634,38 +908,304 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             characteristicRead.addDescriptor(configDescriptor);
         }
         serverTarget.addCharacteristic(characteristicRead);
+        synchronized (this) {
+            if (getRecordedCharacteristic(service, characteristic) == null) {
+                replaceRecordedCharacteristic(service, characteristic, new RecordedCharacteristic(CharacteristicRole.PLAIN, ++characteristicHandle, ReceiveMode.BUFFERED));
+            }
+        }
         BleLogger.log(TAG, "Characteristic " + characteristic + " added to " + service);
         return characteristicRead;
     }
 
-    private HashMap<String, HashMap<String, ArrayList<BluetoothGattCharacteristic>>> characteristicsRecordMap = new HashMap<>();
-    private static String REQUEST_C_KEY = "requestCKey"; //中心设备向外围设备请求一个MTU以内的包
-    private static String REQUEST_LARGE_C_KEY = "requestBytesCKey"; //中心设备向外围设备请求一个大数据包
-    private static String WRITE_LARGE_C_KEY = "writeBytesCKey"; //中心设备向外围设备写入一个大的数据包
-    private static String INDICATE_LARGE_C_KEY = "indicateBytesCKey"; //外围设备向中心设备指示一个大的数据包
+    /**
+     * 添加一个读取结果会被缓存的 Characteristic，缓存命中时不再调用onRead，
+     * 值改变时需要调用{@link #invalidate(UUID, UUID)}
+     *
+     * @param service
+     * @param characteristic
+     * @param properties
+     * @param permissions
+     * @param cacheTtl       缓存的保留时间，单位毫秒，小于等于0时不缓存
+     * @param cacheScope     每个设备各自缓存或所有设备共用一份缓存
+     */
+    public BluetoothGattCharacteristic addCharacteristic(UUID service, UUID characteristic, int properties, int permissions, long cacheTtl, CacheScope cacheScope) throws Exception {
+        BluetoothGattCharacteristic added = addCharacteristic(service, characteristic, properties, permissions);
+        readCache.configure(getRecordedCharacteristic(service, characteristic).handle, cacheTtl, cacheScope);
+        return added;
+    }
+
+    /**
+     * 记录的特征，句柄在添加时分配，用于组成传输、读取快照与读缓存的key
+     */
+    private static class RecordedCharacteristic {
+        final CharacteristicRole role;
+        final int handle;
+        final ReceiveMode receiveMode;
+        //数据流特征每个设备的缓冲容量与丢弃方式
+        final int ingestCapacity;
+        final OverflowPolicy overflowPolicy;
+
+        RecordedCharacteristic(CharacteristicRole role, int handle, ReceiveMode receiveMode) {
+            this(role, handle, receiveMode, 0, null);
+        }
 
-    private ArrayList<BluetoothGattCharacteristic> getRecordCharacteristics(String key, UUID service) {
-        HashMap<String, ArrayList<BluetoothGattCharacteristic>> characteristicsMap = characteristicsRecordMap.get(key);
-        if (characteristicsMap == null) {
-            characteristicsMap = new HashMap<>();
-            characteristicsRecordMap.put(key, characteristicsMap);
+        RecordedCharacteristic(CharacteristicRole role, int handle, ReceiveMode receiveMode, int ingestCapacity, OverflowPolicy overflowPolicy) {
+            this.role = role;
+            this.handle = handle;
+            this.receiveMode = receiveMode;
+            this.ingestCapacity = ingestCapacity;
+            this.overflowPolicy = overflowPolicy;
         }
-        ArrayList<BluetoothGattCharacteristic> recordCharacteristics = characteristicsMap.get(service.toString());
-        if (recordCharacteristics == null) {
-            recordCharacteristics = new ArrayList<>();
-            characteristicsMap.put(service.toString(), recordCharacteristics);
+    }
+
+    //特征角色的查找表，只在添加特征时整体替换，派发时无锁且不产生分配
+    private volatile HashMap<UUID, HashMap<UUID, RecordedCharacteristic>> characteristicRoles = new HashMap<>();
+    private int characteristicHandle = 0;
+
+    private void recordCharacteristicRole(UUID service, UUID characteristic, CharacteristicRole role) {
+        synchronized (this) {
+            replaceRecordedCharacteristic(service, characteristic, new RecordedCharacteristic(role, getHandle(service, characteristic), ReceiveMode.BUFFERED));
         }
-        return recordCharacteristics;
     }
 
-    private boolean isBelongCharacteristic(String key, UUID service, UUID characteristic) {
-        ArrayList<BluetoothGattCharacteristic> requestCharacteristics = getRecordCharacteristics(key, service);
-        for (int i = 0; i < requestCharacteristics.size(); i++) {
-            if (requestCharacteristics.get(i).getUuid().equals(characteristic)) {
-                return true;
+    //添加时已经记录的特征沿用原来的句柄，需要在持有锁时调用
+    private int getHandle(UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        return recorded != null ? recorded.handle : ++characteristicHandle;
+    }
+
+    //整体替换查找表，需要在持有锁时调用
+    private void replaceRecordedCharacteristic(UUID service, UUID characteristic, RecordedCharacteristic recorded) {
+        HashMap<UUID, RecordedCharacteristic> serviceRoles = characteristicRoles.get(service);
+        serviceRoles = serviceRoles == null ? new HashMap<>() : new HashMap<>(serviceRoles);
+        serviceRoles.put(characteristic, recorded);
+        HashMap<UUID, HashMap<UUID, RecordedCharacteristic>> roles = new HashMap<>(characteristicRoles);
+        roles.put(service, serviceRoles);
+        characteristicRoles = roles;
+    }
+
+    /**
+     * 设置长数据写入特征接收数据的方式，默认为{@link ReceiveMode#BUFFERED}
+     *
+     * @param service
+     * @param characteristic
+     * @param mode
+     * @throws Exception 特征不是长数据写入特征
+     */
+    public void setReceiveMode(UUID service, UUID characteristic, ReceiveMode mode) throws Exception {
+        synchronized (this) {
+            RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+            if (recorded == null || recorded.role != CharacteristicRole.WRITE_LARGE) {
+                throw new Exception("Characteristic " + characteristic + " of " + service + " is not a write large characteristic.");
             }
+            replaceRecordedCharacteristic(service, characteristic, new RecordedCharacteristic(recorded.role, recorded.handle, mode));
+        }
+    }
+
+    private volatile File spillDirectory;
+    private volatile int spillThreshold = 64 * 1024;
+
+    /**
+     * 设置{@link ReceiveMode#SPILL}方式下临时文件的目录，默认为缓存目录
+     *
+     * @param directory
+     */
+    public void setSpillDirectory(File directory) {
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * 设置{@link ReceiveMode#SPILL}方式下写入临时文件的阈值，默认为64KB
+     *
+     * @param threshold
+     */
+    public void setSpillThreshold(int threshold) {
+        this.spillThreshold = threshold;
+    }
+
+    private volatile int maxTransferSize = BytesReceiver.DEFAULT_MAX_TRANSFER_SIZE;
+
+    /**
+     * 设置中心设备写入的单个长数据的最大长度，默认为16MB。
+     * 首包声明的长度超过该值，或超过声明的包个数按该设备的MTU所能携带的长度时，传输在分配内存前即失败
+     *
+     * @param maxTransferSize
+     */
+    public void setMaxTransferSize(int maxTransferSize) {
+        this.maxTransferSize = maxTransferSize;
+    }
+
+    /**
+     * 中心设备写入的单个长数据的最大长度
+     */
+    public int getMaxTransferSize() {
+        return maxTransferSize;
+    }
+
+    private volatile int maxExpansionRatio = DeflateUtil.MAX_EXPANSION_RATIO;
+
+    /**
+     * 设置中心设备写入的压缩数据允许的最大压缩比，默认为deflate理论上的最大值1032。
+     * 解压后的原始长度同样受{@link #setMaxTransferSize(int)}限制，超出任一限制时在解压缩前即失败
+     *
+     * @param maxExpansionRatio
+     */
+    public void setMaxExpansionRatio(int maxExpansionRatio) {
+        this.maxExpansionRatio = maxExpansionRatio;
+    }
+
+    /**
+     * 中心设备写入的压缩数据允许的最大压缩比
+     */
+    public int getMaxExpansionRatio() {
+        return maxExpansionRatio;
+    }
+
+    private volatile boolean compressionEnabled = true;
+    private volatile int compressionThreshold = 256;
+    private final CompressionStats compressionStats = new CompressionStats();
+
+    /**
+     * 设置是否压缩发出的长数据，默认开启。
+     * 开启后也只会压缩发给支持解压缩的设备的数据，见{@link #setCompressionSupported}
+     *
+     * @param enabled
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * 设置压缩的阈值，超过阈值的长数据才会尝试压缩，默认为256字节
+     *
+     * @param threshold
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * 设置设备是否支持解压缩长数据。
+     * 设备在协议版本协商中带有{@link DataTags#CAPABILITY_DEFLATE}时会自动设置，也可以由应用层的握手明确设置，设备未连接时忽略
+     *
+     * @param device
+     * @param supported
+     */
+    public void setCompressionSupported(BluetoothDevice device, boolean supported) {
+        CentralSession session = getSession(device);
+        if (session != null) {
+            session.setCompressionSupported(supported);
+        }
+    }
+
+    /**
+     * 设备是否支持解压缩长数据
+     *
+     * @param device
+     * @return 设备未连接时返回false
+     */
+    public boolean isCompressionSupported(BluetoothDevice device) {
+        CentralSession session = getSession(device);
+        return session != null && session.isCompressionSupported();
+    }
+
+    /**
+     * 长数据压缩与解压缩的统计
+     *
+     * @return
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    //尝试压缩，不需要压缩或没有变小时返回null
+    private byte[] compress(CentralSession session, byte[] data) {
+        if (!compressionEnabled || data.length <= compressionThreshold || (session != null && !session.isCompressionSupported())) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        byte[] compressed = DeflateUtil.deflate(data);
+        compressionStats.recordDeflate(data.length, compressed != null ? compressed.length : -1, System.nanoTime() - startTime);
+        return compressed;
+    }
+
+    private final TransferStore transferStore = new TransferStore();
+    private final ReadCache readCache = new ReadCache();
+
+    /**
+     * 特征读取结果的缓存，可以从中得到命中率与节省的onRead调用时间
+     *
+     * @return
+     */
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * 特征值已经改变，使所有设备对该特征的读缓存以及正在进行的长读取失效
+     *
+     * @param service
+     * @param characteristic
+     */
+    public void invalidate(UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        if (recorded != null) {
+            readCache.invalidate(recorded.handle);
+        }
+        invalidateRead(service, characteristic);
+    }
+
+    /**
+     * 特征值对某个设备已经改变，使该设备的读缓存以及正在进行的长读取失效，全局范围的缓存会对所有设备失效
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     */
+    public void invalidate(BluetoothDevice device, UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        if (recorded != null) {
+            CentralSession session = sessions.get(device.getAddress());
+            //断开的设备已经没有设备范围的缓存，只需使全局范围的缓存失效
+            readCache.invalidate(session != null ? session.getId() : 0, recorded.handle);
+        }
+        invalidateRead(device, service, characteristic);
+    }
+
+    /**
+     * 中断的可续传长数据的存储，可以设置保存的个数、总长度与保留时间的限制。
+     * 以{@link DataTags#MS_WRITE_LARGE_RESUMABLE}开始的传输在断开连接或超时时会保存已接收的部分，
+     * 重新连接的中心设备可以通过{@link DataTags#MS_RESUME_QUERY}查询已接收的长度并从该位置续传
+     *
+     * @return
+     */
+    public TransferStore getTransferStore() {
+        return transferStore;
+    }
+
+    private File getSpillDirectory() {
+        File directory = spillDirectory;
+        if (directory != null) {
+            return directory;
         }
-        return false;
+        return context != null ? context.getCacheDir() : new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    private RecordedCharacteristic getRecordedCharacteristic(UUID service, UUID characteristic) {
+        HashMap<UUID, RecordedCharacteristic> serviceRoles = characteristicRoles.get(service);
+        return serviceRoles == null ? null : serviceRoles.get(characteristic);
+    }
+
+    /**
+     * 得到特征在BleEx中承担的角色，没有特殊角色的特征为{@link CharacteristicRole#PLAIN}
+     *
+     * @param service
+     * @param characteristic
+     * @return
+     */
+    public CharacteristicRole getCharacteristicRole(UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        return recorded != null ? recorded.role : CharacteristicRole.PLAIN;
     }
 
     /**
@@ -680,7 +1220,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         BluetoothGattCharacteristic requestCharacteristic = this.addCharacteristic(service, characteristic,
                 BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_INDICATE,
                 BluetoothGattCharacteristic.PERMISSION_WRITE | BluetoothGattCharacteristic.PERMISSION_READ);
-        getRecordCharacteristics(REQUEST_C_KEY, service).add(requestCharacteristic);
+        recordCharacteristicRole(service, characteristic, CharacteristicRole.REQUEST);
         return requestCharacteristic;
     }
 
@@ -696,12 +1236,12 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         BluetoothGattCharacteristic requestBytesCharacteristic = this.addCharacteristic(service, characteristic,
                 BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_INDICATE,
                 BluetoothGattCharacteristic.PERMISSION_WRITE | BluetoothGattCharacteristic.PERMISSION_READ);
-        getRecordCharacteristics(REQUEST_LARGE_C_KEY, service).add(requestBytesCharacteristic);
+        recordCharacteristicRole(service, characteristic, CharacteristicRole.REQUEST_LARGE);
         return requestBytesCharacteristic;
     }
 
     /**
-     * 添加一个中心设备向外围设备写入一个长数据的特征
+     * 添加一个中心设备向外围设备写入一个长数据的特征，分包缺失时会通过该特征的通知请求中心设备补发
      *
      * @param characteristic
      * @param service
@@ -710,9 +1250,9 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
      */
     public BluetoothGattCharacteristic addWriteLargeCharacteristic(UUID service, UUID characteristic) throws Exception {
         BluetoothGattCharacteristic receiveBytesCharacteristic = this.addCharacteristic(service, characteristic,
-                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_WRITE | BluetoothGattCharacteristic.PERMISSION_READ);
-        getRecordCharacteristics(WRITE_LARGE_C_KEY, service).add(receiveBytesCharacteristic);
+        recordCharacteristicRole(service, characteristic, CharacteristicRole.WRITE_LARGE);
         return receiveBytesCharacteristic;
     }
 
@@ -728,30 +1268,191 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         BluetoothGattCharacteristic writeBytesCharacteristic = this.addCharacteristic(service, characteristic,
                 BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_WRITE | BluetoothGattCharacteristic.PERMISSION_READ);
-        getRecordCharacteristics(INDICATE_LARGE_C_KEY, service).add(writeBytesCharacteristic);
+        recordCharacteristicRole(service, characteristic, CharacteristicRole.INDICATE_LARGE);
         return writeBytesCharacteristic;
     }
 
-
-    /* ------------------------------ 数据相关 ------------------------------ */
-
     /**
-     * 接收到特征的读请求（子类可以重写，可以自己实现校验设备的方法）
+     * 添加一个中心设备高频无应答写入的数据流特征，每个设备缓冲256个数据，缓冲已满时丢弃最早的数据
      *
-     * @param device
-     * @param characteristic
      * @param service
+     * @param characteristic
      * @return
+     * @throws Exception
      */
-    protected byte[] onCharacteristicReadRequest(BluetoothDevice device, UUID service, UUID characteristic) {
-        BleCentralDeviceBase centralDevice = getDevice(device);
-        byte[] responseData = null;
+    public BluetoothGattCharacteristic addIngestCharacteristic(UUID service, UUID characteristic) throws Exception {
+        return addIngestCharacteristic(service, characteristic, 256, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * 添加一个中心设备高频无应答写入的数据流特征。
+     * binder线程只把写入的数据放入该设备的有界缓冲，由工作线程批量交给onWriteBatch
+     *
+     * @param service
+     * @param characteristic
+     * @param capacity       每个设备缓冲的数据个数
+     * @param policy         缓冲已满时的丢弃方式
+     * @return
+     * @throws Exception
+     */
+    public BluetoothGattCharacteristic addIngestCharacteristic(UUID service, UUID characteristic, int capacity, OverflowPolicy policy) throws Exception {
+        BluetoothGattCharacteristic ingestCharacteristic = this.addCharacteristic(service, characteristic,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        synchronized (this) {
+            replaceRecordedCharacteristic(service, characteristic, new RecordedCharacteristic(CharacteristicRole.INGEST, getHandle(service, characteristic), ReceiveMode.BUFFERED, Math.max(1, capacity), policy));
+        }
+        return ingestCharacteristic;
+    }
+
+    private volatile Executor ingestExecutor;
+    //未设置线程池时自建的单线程，释放时关闭
+    private ExecutorService ownIngestExecutor;
+
+    /**
+     * 设置批量派发数据流的线程池，默认为一个单独的线程
+     *
+     * @param executor
+     */
+    public void setIngestExecutor(Executor executor) {
+        this.ingestExecutor = executor;
+    }
+
+    private Executor getIngestExecutor() {
+        Executor executor = ingestExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (ownIngestExecutor == null) {
+                ownIngestExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "BleEx-Ingest");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return ownIngestExecutor;
+        }
+    }
+
+    private synchronized void shutdownIngestExecutor() {
+        if (ownIngestExecutor != null) {
+            ownIngestExecutor.shutdown();
+            ownIngestExecutor = null;
+        }
+    }
+
+    /**
+     * 某个设备数据流特征的缓冲，可以从中得到收到、丢弃与派发的数据个数
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @return 特征不是数据流特征或该设备还没有写入时返回null
+     */
+    public IngestBuffer getIngestBuffer(BluetoothDevice device, UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        CentralSession session = sessions.get(device.getAddress());
+        if (recorded == null || recorded.role != CharacteristicRole.INGEST || session == null) {
+            return null;
+        }
+        return session.getIngestBuffer(recorded.handle);
+    }
+
+    //binder线程中只放入缓冲，需要时安排一次取出任务
+    private void ingest(BluetoothDevice device, RecordedCharacteristic recorded, UUID service, UUID characteristic, byte[] value) {
+        CentralSession session = getSession(device);
+        if (session == null) {
+            return;
+        }
+        IngestBuffer buffer = session.getIngestBuffer(recorded.handle, service, characteristic, recorded.ingestCapacity, recorded.overflowPolicy);
+        if (!buffer.offer(value, System.nanoTime())) {
+            return;
+        }
+        try {
+            getIngestExecutor().execute(() -> drainIngest(device, buffer));
+        } catch (RejectedExecutionException e) {
+            BleLogger.log(BleLogger.WARN, TAG, "Ingest of " + characteristic + " from " + device.getAddress() + " rejected by executor.");
+            buffer.clear();
+        }
+    }
+
+    private void drainIngest(BluetoothDevice device, IngestBuffer buffer) {
+        IngestBuffer.Batch batch;
+        while ((batch = buffer.poll()) != null) {
+            BleCentralDeviceBase centralDevice = getDevice(device);
+            if (centralDevice == null) {
+                continue;
+            }
+            try {
+                centralDevice.onWriteBatch(buffer.getService(), buffer.getCharacteristic(), batch.getValues(), batch.getTimestamps());
+            } catch (RuntimeException e) {
+                BleLogger.log(BleLogger.WARN, TAG, "Batch of " + buffer.getCharacteristic() + " from " + device.getAddress() + " failed: " + e + ".");
+            }
+        }
+    }
+
+
+    /* ------------------------------ 数据相关 ------------------------------ */
+
+    /**
+     * 接收到特征的读请求（子类可以重写，可以自己实现校验设备的方法）。
+     * 超过单个读响应长度的值会被保存为快照，中心设备之后的偏移读取都从快照中截取，不会再次调用。
+     * 配置了读缓存的特征命中时直接返回缓存的值
+     *
+     * @param device
+     * @param characteristic
+     * @param service
+     * @return
+     */
+    protected byte[] onCharacteristicReadRequest(BluetoothDevice device, UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        CentralSession session = recorded != null ? sessions.get(device.getAddress()) : null;
+        //在查找缓存之前得到代数，调用onRead期间缓存失效时结果不会放入缓存
+        long generation = session != null ? readCache.getGeneration(recorded.handle) : 0;
+        byte[] responseData = session != null ? readCache.get(session.getId(), recorded.handle) : null;
+        if (responseData != null) {
+            return responseData;
+        }
+        BleCentralDeviceBase centralDevice = getDevice(device);
         if (centralDevice != null) {
+            long startTime = System.nanoTime();
             responseData = centralDevice.onRead(service, characteristic);
+            if (session != null) {
+                readCache.put(session.getId(), recorded.handle, generation, responseData, System.nanoTime() - startTime);
+            }
         }
         return responseData;
     }
 
+    /**
+     * 使某个特征正在进行的长读取失效，之后的偏移读取会重新调用onRead得到新的值，读缓存不受影响
+     *
+     * @param service
+     * @param characteristic
+     */
+    public void invalidateRead(UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        if (recorded != null) {
+            sessions.forEach((address, session) -> session.invalidateReadSnapshot(recorded.handle));
+        }
+    }
+
+    /**
+     * 使某个设备对某个特征正在进行的长读取失效
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     */
+    public void invalidateRead(BluetoothDevice device, UUID service, UUID characteristic) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        CentralSession session = sessions.get(device.getAddress());
+        if (recorded != null && session != null) {
+            session.invalidateReadSnapshot(recorded.handle);
+        }
+    }
+
     /**
      * 接收到特征的写请求（子类可以重写，可以自己实现校验设备的方法）
      *
@@ -761,32 +1462,37 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
      * @param value
      */
     protected void onCharacteristicWriteRequest(BluetoothDevice device, UUID service, UUID characteristic, byte[] value) {
-        if (isBelongCharacteristic(REQUEST_C_KEY, service, characteristic)) {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        CharacteristicRole role = recorded != null ? recorded.role : CharacteristicRole.PLAIN;
+        if (role == CharacteristicRole.REQUEST) {
             if (value.length > 0) {
                 //接受数据格式:第一个字节为请求id，后续为数据内容
                 //返回数据：第一个字节为请求id，后续为数据内容
                 byte requestId = value[0];
-                byte[] requestingData = new byte[value.length - 1];
-                for (int i = 1; i < value.length; i++) {
-                    requestingData[i - 1] = value[i];
-                }
-                byte[] response = onRequest(device, service, characteristic, requestingData);
-                byte[] finalResponse = new byte[response.length + 1];
-                finalResponse[0] = requestId;
-                for (int i = 0; i < response.length; i++) {
-                    finalResponse[i + 1] = response[i];
-                }
-                //将请求结果发送给主设备
-                try {
-                    this.notifyCharacteristicChanged(device, service, characteristic, finalResponse, true);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                byte[] requestingData = Arrays.copyOfRange(value, 1, value.length);
+                dispatchRequest(() -> onRequestAsync(device, service, characteristic, requestingData), device, characteristic, response -> {
+                    sendResponse(device, service, characteristic, requestId, response);
+                }, () -> sendRequestFailed(device, service, characteristic, requestId));
             }
             return;
         }
-        if (isBelongCharacteristic(WRITE_LARGE_C_KEY, service, characteristic) || isBelongCharacteristic(REQUEST_LARGE_C_KEY, service, characteristic)) {
-            receivingDataPacket(device, service, characteristic, value);
+        boolean large = role == CharacteristicRole.WRITE_LARGE || role == CharacteristicRole.REQUEST_LARGE || role == CharacteristicRole.INDICATE_LARGE;
+        CentralSession session = large ? getSession(device) : null;
+        if (large && session == null) {
+            BleLogger.log(BleLogger.WARN, TAG, "Write of " + characteristic + " ignored, " + device.getAddress() + " is not connected.");
+            return;
+        }
+        if (large && (value.length == 4 || value.length == 5) && value[0] == 0 && hasTag(value, 1, DataTags.MS_PROTOCOL_VERSION)) {
+            negotiateProtocol(session, service, characteristic, value[3], value.length == 5 ? value[4] & 0xFF : -1);
+            return;
+        }
+        if ((role == CharacteristicRole.INDICATE_LARGE || role == CharacteristicRole.REQUEST_LARGE)
+                && hasTag(value, session.getIdLength(), DataTags.MS_RESEND_REQUEST)) {
+            resendLarge(session, recorded.handle, value);
+            return;
+        }
+        if (role == CharacteristicRole.WRITE_LARGE || role == CharacteristicRole.REQUEST_LARGE) {
+            receivingDataPacket(session, service, characteristic, recorded.handle, value);
             return;
         }
         BleCentralDeviceBase centralDevice = getDevice(device);
@@ -795,54 +1501,95 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         }
     }
 
-    private final HashMap<String, BytesReceiver> bytesReceivers = new HashMap<>();
-
-    private void cleanAllReceivers(){
-        bytesReceivers.forEach((key,receiver)->{
-            receiver.clear();
-        });
-        bytesReceivers.clear();
+    private static boolean hasTag(byte[] pack, int offset, byte[] tag) {
+        return pack.length >= offset + 2 && pack[offset] == tag[0] && pack[offset + 1] == tag[1];
     }
 
-    private void receivingDataPacket(BluetoothDevice device, UUID service, UUID characteristic, byte[] pack) {
-        byte requestIndex = -1;
-        if (pack.length >= 1) {
-            requestIndex = pack[0];
+    //外设支持的能力位，收到的压缩数据总是可以解压缩
+    private static final int CAPABILITIES = DataTags.CAPABILITY_DEFLATE;
+
+    //协商长数据的协议版本，取双方都支持的最高版本，capabilities为-1时中心设备没有发出能力位，应答中也不带
+    private void negotiateProtocol(CentralSession session, UUID service, UUID characteristic, int requested, int capabilities) {
+        int version = Math.max(RequestIds.VERSION_1, Math.min(requested, RequestIds.MAX_VERSION));
+        session.setProtocolVersion(version);
+        byte[] value;
+        if (capabilities < 0) {
+            value = new byte[]{0, DataTags.SM_PROTOCOL_VERSION[0], DataTags.SM_PROTOCOL_VERSION[1], (byte) version};
         } else {
-            return;
+            int shared = capabilities & CAPABILITIES;
+            session.setCompressionSupported((shared & DataTags.CAPABILITY_DEFLATE) != 0);
+            value = new byte[]{0, DataTags.SM_PROTOCOL_VERSION[0], DataTags.SM_PROTOCOL_VERSION[1], (byte) version, (byte) shared};
         }
-        String key = BytesReceiver.createKey(device, service, characteristic, requestIndex);
-        BytesReceiver receiver = null;
-        if (bytesReceivers.containsKey(key)) {
-            receiver = bytesReceivers.get(key);
-        } else {
-            //没有这个接收器，证明原则上应该是首包才对，如果不是首包还没找到接收器，则直接忽视这个包，应该是之前包的遗漏部分。
-            if (pack.length >= 3 && pack[1] == DataTags.MS_WRITE_LARGE[0] && pack[2] == DataTags.MS_WRITE_LARGE[1]) {
-                BytesReceiver newReceiver = new BytesReceiver(key, requestIndex, device, service, characteristic);
-                newReceiver.setCallback(new BytesReceiver.BytesReceiveCallback() {
-                    @Override
-                    public void onReceive(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex, byte[] data) {
-                        BleLogger.log(TAG, "Received long bytes(length: " + data.length + ") with index: " + requestIndex + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
-                        receivedData(device, service, characteristic, data);
-                    }
+        BleLogger.log(BleLogger.DEBUG, TAG, "Negotiated protocol version " + version + " (requested: " + requested + ", capabilities: " + capabilities + ") with " + session.getAddress() + ".");
+        session.getSender().send(new NotificationPacket(service, characteristic, value, false, null, OutboundPriority.CONTROL));
+    }
 
-                    @Override
-                    public void onError(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex) {
-                        BleLogger.log(TAG, "Receive long bytes error with index: " + requestIndex + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
-                    }
+    /**
+     * 与设备协商的长数据协议版本，见{@link RequestIds}
+     *
+     * @param device
+     * @return 设备未连接时返回{@link RequestIds#VERSION_1}
+     */
+    public int getProtocolVersion(BluetoothDevice device) {
+        CentralSession session = getSession(device);
+        return session != null ? session.getProtocolVersion() : RequestIds.VERSION_1;
+    }
 
-                    @Override
-                    public void onTimeout(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex) {
-                        BleLogger.log(TAG, "Receive long bytes timeout with index: " + requestIndex + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
-                    }
+    private final AtomicLong requestIdCollisions = new AtomicLong();
 
-                    @Override
-                    public void onFinish(BluetoothDevice device, UUID service, UUID characteristic, String key) {
-                        bytesReceivers.remove(key);
-                    }
-                });
-                bytesReceivers.put(key, newReceiver);
-                receiver = newReceiver;
+    /**
+     * 中心设备在请求号仍在途时又用它开始另一个传输的次数，此时正在接收的传输会被放弃
+     *
+     * @return
+     */
+    public long getRequestIdCollisionCount() {
+        return requestIdCollisions.get();
+    }
+
+    //所有接收器共享的超时时间轮，100毫秒一格
+    private final TimeoutWheel timeoutWheel = new TimeoutWheel(100, 256);
+    //发出的长数据保留到期的时间轮，与接收超时分开计数
+    private final TimeoutWheel retainWheel = new TimeoutWheel(100, 256);
+
+    /**
+     * 正在等待超时的长数据接收个数
+     *
+     * @return
+     */
+    public int getPendingReceiveCount() {
+        return timeoutWheel.getPendingCount();
+    }
+
+    private void receivingDataPacket(CentralSession session, UUID service, UUID characteristic, int characteristicHandle, byte[] pack) {
+        BluetoothDevice device = session.getDevice();
+        int idLength = session.getIdLength();
+        if (pack.length < idLength) {
+            return;
+        }
+        int requestId = RequestIds.read(pack, idLength);
+        if (pack.length >= idLength + 10 && hasTag(pack, idLength, DataTags.MS_RESUME_QUERY)) {
+            long transferId = BytesUtil.readLong(pack, idLength + 2);
+            sendResumeOffset(session, service, characteristic, requestId, transferId, transferStore.getOffset(session.getAddress(), transferId));
+            return;
+        }
+        long key = BytesReceiver.createKey(session.getId(), characteristicHandle, requestId);
+        BytesReceiver receiver = session.getReceiver(key);
+        boolean deflated = hasTag(pack, idLength, DataTags.MS_WRITE_LARGE_DEFLATE);
+        boolean resumable = pack.length >= idLength + 22 && hasTag(pack, idLength, DataTags.MS_WRITE_LARGE_RESUMABLE);
+        boolean first = deflated || resumable || hasTag(pack, idLength, DataTags.MS_WRITE_LARGE);
+        if (receiver != null && first && !receiver.matchesFirstPackage(pack)) {
+            //请求号仍在途时开始了另一个传输，放弃之前的传输，以免两者的数据混在一起
+            requestIdCollisions.incrementAndGet();
+            BleLogger.log(BleLogger.WARN, TAG, "Request id " + requestId + " of " + characteristic + " collided with an in-flight transfer from " + device.getAddress() + ".");
+            receiver.abort();
+            receiver = null;
+        }
+        if (receiver == null) {
+            //没有这个接收器，证明原则上应该是首包才对，如果不是首包还没找到接收器，则直接忽视这个包，应该是之前包的遗漏部分。
+            if (resumable) {
+                receiver = startResumable(session, device, service, characteristic, key, requestId, pack);
+            } else if (first) {
+                receiver = createReceiver(session, device, service, characteristic, key, requestId);
             }
         }
         if (receiver != null) {
@@ -850,29 +1597,178 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         }
     }
 
+    private BytesReceiver createReceiver(CentralSession session, BluetoothDevice device, UUID service, UUID characteristic, long key, int requestId) {
+        BytesReceiver receiver = new BytesReceiver(key, requestId, session.getIdLength(), device, service, characteristic, timeoutWheel);
+        receiver.setCompressionStats(compressionStats);
+        receiver.setTransferStore(transferStore);
+        receiver.setLimits(maxTransferSize, session.getPackageSize());
+        receiver.setMaxExpansionRatio(maxExpansionRatio);
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        if (recorded != null && recorded.role == CharacteristicRole.WRITE_LARGE) {
+            //长请求需要完整的数据，只有长数据写入可以使用其他接收方式
+            receiver.setMode(recorded.receiveMode);
+            if (recorded.receiveMode == ReceiveMode.SPILL) {
+                receiver.setSpill(getSpillDirectory(), spillThreshold);
+            }
+        }
+        receiver.setCallback(createReceiveCallback(session, receiver));
+        session.putReceiver(key, receiver);
+        return receiver;
+    }
+
+    //可续传传输的一段的首包，起始偏移不为0时续传之前中断的传输
+    private BytesReceiver startResumable(CentralSession session, BluetoothDevice device, UUID service, UUID characteristic, long key, int requestId, byte[] pack) {
+        int idLength = session.getIdLength();
+        long transferId = BytesUtil.readLong(pack, idLength + 10);
+        int from = BytesUtil.readInt(pack, idLength + 18);
+        if (from == 0) {
+            //重新开始，丢弃之前中断的部分
+            BytesReceiver stale = transferStore.remove(device.getAddress(), transferId);
+            if (stale != null) {
+                stale.clear();
+            }
+            return createReceiver(session, device, service, characteristic, key, requestId);
+        }
+        int parkedOffset = transferStore.getOffset(device.getAddress(), transferId);
+        BytesReceiver parked = parkedOffset == from ? transferStore.remove(device.getAddress(), transferId) : null;
+        if (parked == null) {
+            BleLogger.log(BleLogger.WARN, TAG, "Can not resume transfer " + Long.toHexString(transferId) + " from offset " + from + ", received: " + parkedOffset + ", device: " + device.getAddress() + ".");
+            sendResumeOffset(session, service, characteristic, requestId, transferId, parkedOffset);
+            return null;
+        }
+        BleLogger.log(BleLogger.DEBUG, TAG, "Resume transfer " + Long.toHexString(transferId) + " from offset " + from + " with id: " + requestId + ", device: " + device.getAddress() + ".");
+        parked.resume(key, requestId, idLength, device);
+        parked.setCallback(createReceiveCallback(session, parked));
+        session.putReceiver(key, parked);
+        return parked;
+    }
+
+    //回复续传查询：请求号+续传应答标识+传输id+已接收的长度
+    private void sendResumeOffset(CentralSession session, UUID service, UUID characteristic, int requestId, long transferId, int offset) {
+        int idLength = session.getIdLength();
+        byte[] value = new byte[idLength + 14];
+        RequestIds.write(value, idLength, requestId);
+        value[idLength] = DataTags.SM_RESUME_OFFSET[0];
+        value[idLength + 1] = DataTags.SM_RESUME_OFFSET[1];
+        BytesUtil.writeLong(value, idLength + 2, transferId);
+        BytesUtil.writeInt(value, idLength + 10, offset);
+        session.getSender().send(new NotificationPacket(service, characteristic, value, false, null, OutboundPriority.CONTROL));
+    }
+
+    private BytesReceiver.BytesReceiveCallback createReceiveCallback(CentralSession session, BytesReceiver receiver) {
+        return new BytesReceiver.BytesReceiveCallback() {
+            @Override
+            public void onReceive(BluetoothDevice device, UUID service, UUID characteristic, int requestId, byte[] data) {
+                BleLogger.log(BleLogger.DEBUG, TAG, "Received long bytes(length: " + data.length + compressionInfo(receiver) + ") with index: " + requestId + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
+                receivedData(device, service, characteristic, data);
+            }
+
+            @Override
+            public void onChunk(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int offset, ByteBuffer chunk, int length) {
+                BleCentralDeviceBase centralDevice = getDevice(device);
+                if (centralDevice != null) {
+                    centralDevice.onWriteLargeChunk(service, characteristic, offset, chunk, length);
+                }
+            }
+
+            @Override
+            public void onReceiveMapped(BluetoothDevice device, UUID service, UUID characteristic, int requestId, ByteBuffer data) {
+                BleLogger.log(BleLogger.DEBUG, TAG, "Received long bytes(length: " + data.remaining() + compressionInfo(receiver) + ", mapped) with index: " + requestId + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
+                BleCentralDeviceBase centralDevice = getDevice(device);
+                if (centralDevice != null) {
+                    centralDevice.onWriteLarge(service, characteristic, data);
+                }
+            }
+
+            @Override
+            public void onMissing(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int[] missing) {
+                requestResend(session, service, characteristic, requestId, missing);
+            }
+
+            @Override
+            public void onError(BluetoothDevice device, UUID service, UUID characteristic, int requestId) {
+                BleLogger.log(BleLogger.WARN, TAG, "Receive long bytes error with index: " + requestId + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
+                onWriteLargeFailed(device, service, characteristic);
+            }
+
+            @Override
+            public void onTimeout(BluetoothDevice device, UUID service, UUID characteristic, int requestId) {
+                BleLogger.log(BleLogger.WARN, TAG, "Receive long bytes timeout with index: " + requestId + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
+                onWriteLargeFailed(device, service, characteristic);
+            }
+
+            @Override
+            public void onSuspend(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int offset) {
+                BleLogger.log(BleLogger.DEBUG, TAG, "Suspended transfer " + Long.toHexString(receiver.getTransferId()) + " at offset " + offset + " with index: " + requestId + " from {device: " + device.getAddress() + ", service: " + service + ", characteristic: " + characteristic + "}.");
+            }
+
+            @Override
+            public void onFinish(BluetoothDevice device, UUID service, UUID characteristic, long key) {
+                session.removeReceiver(key);
+            }
+        };
+    }
+
+    //请求中心设备补发缺失的分包：请求号+补发标识+若干个分包索引
+    private void requestResend(CentralSession session, UUID service, UUID characteristic, int requestId, int[] missing) {
+        int idLength = session.getIdLength();
+        int count = Math.min(missing.length, (session.getPackageSize() - idLength - 2) / 4);
+        byte[] value = new byte[idLength + 2 + count * 4];
+        RequestIds.write(value, idLength, requestId);
+        value[idLength] = DataTags.SM_RESEND_REQUEST[0];
+        value[idLength + 1] = DataTags.SM_RESEND_REQUEST[1];
+        for (int i = 0; i < count; i++) {
+            BytesUtil.writeInt(value, idLength + 2 + i * 4, missing[i]);
+        }
+        if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+            BleLogger.log(BleLogger.DEBUG, TAG, "Request resend of " + count + " packages with id: " + requestId + " from " + session.getAddress() + ".");
+        }
+        session.getSender().send(new NotificationPacket(service, characteristic, value, false, null, OutboundPriority.CONTROL));
+    }
+
+    //中心设备请求补发长数据指示中缺失的分包
+    private void resendLarge(CentralSession session, int characteristicHandle, byte[] value) {
+        BluetoothDevice device = session.getDevice();
+        int idLength = session.getIdLength();
+        int requestId = RequestIds.read(value, idLength);
+        BytesWriter writer = session.getWriter(BytesWriter.createKey(session.getId(), characteristicHandle, requestId));
+        int[] indices = new int[(value.length - idLength - 2) / 4];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = BytesUtil.readInt(value, idLength + 2 + i * 4);
+        }
+        if (writer == null || !writer.resend(indices)) {
+            BleLogger.log(BleLogger.WARN, TAG, "Can not resend " + indices.length + " packages with id: " + requestId + " to " + device.getAddress() + ".");
+            return;
+        }
+        if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+            BleLogger.log(BleLogger.DEBUG, TAG, "Resend " + indices.length + " packages of " + writer + " to " + device.getAddress() + ".");
+        }
+        session.getSender().send(writer);
+    }
+
+    private static String compressionInfo(BytesReceiver receiver) {
+        return receiver.isCompressed() ? ", compressed: " + receiver.getFramedLength() : "";
+    }
+
+    private void onWriteLargeFailed(BluetoothDevice device, UUID service, UUID characteristic) {
+        if (getCharacteristicRole(service, characteristic) != CharacteristicRole.WRITE_LARGE) {
+            return;
+        }
+        BleCentralDeviceBase centralDevice = getDevice(device);
+        if (centralDevice != null) {
+            centralDevice.onWriteLargeFailed(service, characteristic);
+        }
+    }
+
     private void receivedData(BluetoothDevice device, UUID service, UUID characteristic, byte[] data) {
         //收到的长数据包，要么就是长请求，要么就是长写入，第一种情况符合长请求
-        if (isBelongCharacteristic(REQUEST_LARGE_C_KEY, service, characteristic)) {
+        if (getCharacteristicRole(service, characteristic) == CharacteristicRole.REQUEST_LARGE) {
             if (data.length >= 3 && DataTags.MS_REQUEST_LARGE[0] == 88 && DataTags.MS_REQUEST_LARGE[1] == 99) {
                 byte reqeustId = data[2];
-                byte[] requestingData = new byte[data.length - 3];
-                ByteBuffer buffer = ByteBuffer.wrap(data);
-                buffer.position(3);
-                buffer.get(requestingData, 0, data.length - 3);
-                byte[] response = onRequestLarge(device, service, characteristic, requestingData);
-                byte[] finalResponse = new byte[response.length + 3];
-                finalResponse[0] = DataTags.SM_RESPONSE_LARGE[0];
-                finalResponse[1] = DataTags.SM_RESPONSE_LARGE[1];
-                finalResponse[2] = reqeustId;
-                buffer = ByteBuffer.wrap(response);
-                buffer.position(0);
-                buffer.get(finalResponse, 3, response.length);
-                //将请求结果发送给主设备
-                try {
-                    indicateLarge(device, service, characteristic, finalResponse);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                byte[] requestingData = Arrays.copyOfRange(data, 3, data.length);
+                dispatchRequest(() -> onRequestLargeAsync(device, service, characteristic, requestingData), device, characteristic, response -> {
+                    sendLargeResponse(device, service, characteristic, reqeustId, response);
+                }, () -> sendLargeRequestFailed(device, service, characteristic, reqeustId));
                 return;
             }
         }
@@ -883,6 +1779,126 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
     }
 
 
+    private volatile Executor requestExecutor;
+
+    /**
+     * 设置执行请求处理的线程池。默认为null，即在蓝牙的binder线程中直接调用；
+     * 设置后binder线程只负责派发，处理完成后的应答会在完成的线程中分包发出。
+     *
+     * @param executor
+     */
+    public void setRequestExecutor(Executor executor) {
+        this.requestExecutor = executor;
+    }
+
+    /**
+     * 执行请求处理的线程池
+     */
+    public Executor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    //请求被拒绝、处理时抛出异常或没有得到应答时，在同一个请求号上发出失败应答，见DataTags.SM_REQUEST_FAILED，协议版本1的设备不会收到应答
+    private void dispatchRequest(Supplier<CompletableFuture<byte[]>> handler, BluetoothDevice device, UUID characteristic, Consumer<byte[]> responder, Runnable failer) {
+        Executor executor = requestExecutor;
+        if (executor == null) {
+            handleRequest(handler, device, characteristic, responder, failer);
+            return;
+        }
+        try {
+            executor.execute(() -> handleRequest(handler, device, characteristic, responder, failer));
+        } catch (RejectedExecutionException e) {
+            BleLogger.log(BleLogger.WARN, TAG, "Request of " + characteristic + " from " + device.getAddress() + " rejected by executor.");
+            failer.run();
+        }
+    }
+
+    private void handleRequest(Supplier<CompletableFuture<byte[]>> handler, BluetoothDevice device, UUID characteristic, Consumer<byte[]> responder, Runnable failer) {
+        CompletableFuture<byte[]> future;
+        try {
+            future = handler.get();
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        if (future == null) {
+            future = CompletableFuture.completedFuture(null);
+        }
+        future.whenComplete((response, error) -> {
+            if (!sessions.containsKey(device.getAddress())) {
+                //处理期间设备已经断开
+                BleLogger.log(BleLogger.DEBUG, TAG, "Response of " + characteristic + " dropped, " + device.getAddress() + " disconnected.");
+                return;
+            }
+            if (error != null || response == null) {
+                BleLogger.log(BleLogger.WARN, TAG, "Request of " + characteristic + " from " + device.getAddress() + " failed: " + (error != null ? error : "null response") + ".");
+                failer.run();
+                return;
+            }
+            responder.accept(response);
+        });
+    }
+
+    //失败应答在协议版本1中可能与正常的应答混淆，只发给协商了版本2及以上的设备
+    private static boolean acceptsRequestFailed(CentralSession session) {
+        return session != null && session.getProtocolVersion() >= RequestIds.VERSION_2;
+    }
+
+    private void sendRequestFailed(BluetoothDevice device, UUID service, UUID characteristic, byte requestId) {
+        CentralSession session = getSession(device);
+        if (!acceptsRequestFailed(session)) {
+            return;
+        }
+        byte[] value = new byte[]{requestId, DataTags.SM_REQUEST_FAILED[0], DataTags.SM_REQUEST_FAILED[1]};
+        session.getSender().send(new NotificationPacket(service, characteristic, value, true, null));
+    }
+
+    private void sendLargeRequestFailed(BluetoothDevice device, UUID service, UUID characteristic, byte requestId) {
+        if (!acceptsRequestFailed(getSession(device))) {
+            return;
+        }
+        byte[] value = new byte[]{DataTags.SM_REQUEST_FAILED[0], DataTags.SM_REQUEST_FAILED[1], requestId};
+        try {
+            indicateLarge(device, service, characteristic, value, OutboundPriority.RESPONSE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendResponse(BluetoothDevice device, UUID service, UUID characteristic, byte requestId, byte[] response) {
+        CentralSession session = getSession(device);
+        if (session == null) {
+            BleLogger.log(BleLogger.DEBUG, TAG, "Response of " + characteristic + " dropped, " + device.getAddress() + " disconnected.");
+            return;
+        }
+        int maxResponseSize = session.getPackageSize() - 1;
+        if (response.length > maxResponseSize) {
+            //截断的应答会被当作完整的应答，改为按失败应答
+            BleLogger.log(BleLogger.WARN, TAG, "Response(length: " + response.length + ") of " + characteristic + " exceeds mtu of " + device.getAddress() + "(max: " + maxResponseSize + "), request failed.");
+            sendRequestFailed(device, service, characteristic, requestId);
+            return;
+        }
+        byte[] finalResponse = bufferPool.acquire(response.length + 1);
+        finalResponse[0] = requestId;
+        System.arraycopy(response, 0, finalResponse, 1, response.length);
+        //将请求结果排队发送给主设备，缓冲在得到回馈后归还
+        session.getSender().send(new NotificationPacket(service, characteristic, finalResponse, true, bufferPool));
+    }
+
+    private void sendLargeResponse(BluetoothDevice device, UUID service, UUID characteristic, byte requestId, byte[] response) {
+        byte[] finalResponse = new byte[response.length + 3];
+        finalResponse[0] = DataTags.SM_RESPONSE_LARGE[0];
+        finalResponse[1] = DataTags.SM_RESPONSE_LARGE[1];
+        finalResponse[2] = requestId;
+        System.arraycopy(response, 0, finalResponse, 3, response.length);
+        //将请求结果发送给主设备，应答可以在正在发送的长数据指示之间插队
+        try {
+            indicateLarge(device, service, characteristic, finalResponse, OutboundPriority.RESPONSE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * 收到了有应答的请求
      *
@@ -917,63 +1933,306 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
         return new byte[]{0};
     }
 
+    /**
+     * 收到了有应答的请求的异步处理，优先交给中心设备的onRequestAsync（子类可以重写）
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param value
+     * @return 完成时分包发出应答
+     */
+    protected CompletableFuture<byte[]> onRequestAsync(BluetoothDevice device, UUID service, UUID characteristic, byte[] value) {
+        BleCentralDeviceBase centralDevice = getDevice(device);
+        CompletableFuture<byte[]> future = centralDevice != null ? centralDevice.onRequestAsync(service, characteristic, value) : null;
+        //中心设备没有异步处理时，仍然使用同步的onRequest
+        return future != null ? future : CompletableFuture.completedFuture(onRequest(device, service, characteristic, value));
+    }
 
     /**
-     * 派发通知
+     * 收到了有应答的长数据请求的异步处理，优先交给中心设备的onRequestLargeAsync（子类可以重写）
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param value
+     * @return 完成时分包发出应答
+     */
+    protected CompletableFuture<byte[]> onRequestLargeAsync(BluetoothDevice device, UUID service, UUID characteristic, byte[] value) {
+        BleCentralDeviceBase centralDevice = getDevice(device);
+        CompletableFuture<byte[]> future = centralDevice != null ? centralDevice.onRequestLargeAsync(service, characteristic, value) : null;
+        //中心设备没有异步处理时，仍然使用同步的onRequestLarge
+        return future != null ? future : CompletableFuture.completedFuture(onRequestLarge(device, service, characteristic, value));
+    }
+
+
+    /**
+     * 直接派发通知，不经过发送队列。
+     * 与队列中的通知同时使用时会相互竞争，一般应使用{@link #sendNotification}
      *
      * @param device
      * @param characteristic
      * @param service
      * @param value
      * @param confirm
+     * @return 协议栈是否接受了该通知
      * @throws Exception
      */
-    public void notifyCharacteristicChanged(BluetoothDevice device, UUID service, UUID characteristic, byte[] value, boolean confirm) throws Exception {
-        BluetoothGattServer serverTarget = this.getServer(service);
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, UUID service, UUID characteristic, byte[] value, boolean confirm) throws Exception {
+        GattServer serverTarget = this.getServer(service);
         BluetoothGattService serviceTarget = this.serviceMap.get(service.toString());
         BluetoothGattCharacteristic characteristicTarget = serviceTarget.getCharacteristic(characteristic);
         characteristicTarget.setValue(value);
-        serverTarget.notifyCharacteristicChanged(device, characteristicTarget, confirm);
-        BleLogger.log(TAG, String.format("notifyCharacteristicChanged:%s,%s,%s,%s", device.getName(), device.getAddress(), characteristic, BytesUtil.bytesToString(value, false)));
+        boolean success = serverTarget.notifyCharacteristicChanged(device, characteristicTarget, confirm);
+        if (BleLogger.isEnabled(BleLogger.TRACE)) {
+            BleLogger.log(BleLogger.TRACE, TAG, String.format("notifyCharacteristicChanged:%s,%s,%s,%s,%s", device.getName(), device.getAddress(), characteristic, BleLogger.dump(value), success));
+        }
+        return success;
     }
 
-    private final HashMap<String, Byte> indexMap = new HashMap<>();
+    /**
+     * 将通知或指示排队到该设备的发送队列中，与其他通知、应答以及长数据依次发出
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param value
+     * @param confirm
+     * @return 得到协议栈的回馈后完成，设备未连接时以异常完成
+     */
+    public CompletableFuture<Void> sendNotification(BluetoothDevice device, UUID service, UUID characteristic, byte[] value, boolean confirm) {
+        CentralSession session = getSession(device);
+        if (session == null) {
+            return notConnected(device);
+        }
+        //排队期间调用方可能修改数据，需要复制一份
+        NotificationPacket packet = new NotificationPacket(service, characteristic, value.clone(), confirm, null);
+        session.getSender().send(packet);
+        return packet.getFuture();
+    }
 
-    private byte getIndex(String type) {
-        Byte existIndex = -128;
-        if (indexMap.containsKey(type)) {
-            existIndex = indexMap.get(type);
-        }
-        existIndex++;
-        if (existIndex == 127) {
-            existIndex = -128;
-        }
-        indexMap.put(type, existIndex);
-        return existIndex;
+    /**
+     * 指示长数据(有反馈的长数据通知)，设备支持解压缩且数据超过阈值时会压缩发送
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param data
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
+     * @throws Exception 该设备所有的请求号都在途
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(BluetoothDevice device, UUID service, UUID characteristic, byte[] data) throws Exception {
+        return indicateLarge(device, service, characteristic, data, OutboundPriority.BULK);
     }
 
     /**
-     * 指示长数据(有反馈的长数据通知)
+     * 以指定的优先级指示长数据，高优先级的长数据会按权重在低优先级的长数据分包之间插队发出
      *
      * @param device
      * @param service
      * @param characteristic
      * @param data
+     * @param priority
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率，设备未连接时以异常完成
+     * @throws Exception 该设备所有的请求号都在途
      */
-    public void indicateLarge(BluetoothDevice device, UUID service, UUID characteristic, byte[] data) throws Exception {
-        if (isBelongCharacteristic(REQUEST_LARGE_C_KEY, service, characteristic) || isBelongCharacteristic(INDICATE_LARGE_C_KEY, service, characteristic)) {
-            byte writeIndex = getIndex("writeBytes");
-            String key = BytesWriter.createKey(device, service, characteristic, writeIndex);
-            BluetoothGattService serviceTarget = this.serviceMap.get(service.toString());
-            BluetoothGattCharacteristic characteristicTarget = serviceTarget.getCharacteristic(characteristic);
-            BytesWriter writer = new BytesWriter(writeIndex, getPackageSize(), key, device, this, service, characteristic);
+    public CompletableFuture<BytesWriter> indicateLarge(BluetoothDevice device, UUID service, UUID characteristic, byte[] data, OutboundPriority priority) throws Exception {
+        CentralSession session = getSession(device);
+        if (session == null) {
+            return notConnected(device);
+        }
+        BytesWriter writer = createLargeWriter(session, service, characteristic);
+        if (writer == null) {
+            return unsupportedLarge(service, characteristic);
+        }
+        writer.setPriority(priority);
+        long startTime = System.nanoTime();
+        byte[] compressed = compress(session, data);
+        if (compressed != null) {
+            writer.writeCompressed(compressed, data.length, System.nanoTime() - startTime);
+        } else {
             writer.writeBytes(data);
         }
+        return sendLarge(session, writer);
+    }
+
+    /**
+     * 从通道中流式指示长数据，分包在发送窗口打开时才会从通道中读取，发送结束或失败后通道会被关闭
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param channel
+     * @param length         数据总长度，通道提前结束时发送失败
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率，设备未连接时以异常完成
+     * @throws Exception 该设备所有的请求号都在途
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(BluetoothDevice device, UUID service, UUID characteristic, ReadableByteChannel channel, int length) throws Exception {
+        CentralSession session = getSession(device);
+        if (session == null) {
+            channel.close();
+            return notConnected(device);
+        }
+        BytesWriter writer;
+        try {
+            writer = createLargeWriter(session, service, characteristic);
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+        if (writer == null) {
+            channel.close();
+            return unsupportedLarge(service, characteristic);
+        }
+        writer.writeChannel(channel, length);
+        return sendLarge(session, writer);
+    }
+
+    /**
+     * 从输入流中流式指示长数据，分包在发送窗口打开时才会从流中读取，发送结束或失败后流会被关闭
+     *
+     * @param device
+     * @param service
+     * @param characteristic
+     * @param stream
+     * @param length         数据总长度，流提前结束时发送失败
+     * @return 全部分包都得到回馈后完成，可以从中得到传输速率
+     */
+    public CompletableFuture<BytesWriter> indicateLarge(BluetoothDevice device, UUID service, UUID characteristic, InputStream stream, int length) throws Exception {
+        return indicateLarge(device, service, characteristic, Channels.newChannel(stream), length);
+    }
+
+    //创建长数据发送器并保留以便补发，特征不支持时返回null，请求号在被挤出保留且发送结束后释放
+    private BytesWriter createLargeWriter(CentralSession session, UUID service, UUID characteristic) throws Exception {
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        if (recorded == null || (recorded.role != CharacteristicRole.REQUEST_LARGE && recorded.role != CharacteristicRole.INDICATE_LARGE)) {
+            return null;
+        }
+        RequestIds ids = session.getWriteIds();
+        int requestId = ids.acquire();
+        long key = BytesWriter.createKey(session.getId(), recorded.handle, requestId);
+        BytesWriter writer = new BytesWriter(requestId, ids.getIdLength(), session.getPackageSize(), key, session.getDevice(), service, characteristic, bufferPool);
+        session.putWriter(writer, ids);
+        return writer;
+    }
+
+    private CompletableFuture<BytesWriter> sendLarge(CentralSession session, BytesWriter writer) {
+        if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+            writer.getFuture().thenAccept(result -> {
+                BleLogger.log(BleLogger.DEBUG, TAG, "Indicated long bytes(length: " + result.getLength() + (result.isCompressed() ? ", compressed: " + result.getFramedLength() + ", ratio: " + String.format("%.2f", result.getCompressionRatio()) : "") + ") with " + Long.toHexString(result.getKey()) + " in " + result.getDuration() + "ms, " + result.getBytesPerSecond() + " bytes/s.");
+            });
+        }
+        session.getSender().send(writer);
+        return writer.getFuture();
+    }
+
+    private CompletableFuture<BytesWriter> unsupportedLarge(UUID service, UUID characteristic) {
+        CompletableFuture<BytesWriter> future = new CompletableFuture<>();
+        future.completeExceptionally(new Exception("Characteristic " + characteristic + " of " + service + " does not support indicateLarge."));
+        return future;
+    }
+
+    /**
+     * 向所有已连接的设备广播
+     *
+     * @param service
+     * @param characteristic
+     * @param data
+     * @return
+     */
+    public Map<T, CompletableFuture<Void>> broadcast(UUID service, UUID characteristic, byte[] data) {
+        return broadcast(service, characteristic, data, null);
+    }
+
+    /**
+     * 向符合条件的已连接设备广播。
+     * 长数据特征会以长数据指示发出，同一MTU的设备只分包一次，共享同一组分包；其他特征以通知发出，所有设备共享同一份数据。
+     * 长数据最多压缩一次，只发给支持解压缩的设备，其他设备仍收到未压缩的分包。
+     *
+     * @param service
+     * @param characteristic
+     * @param data
+     * @param predicate      为null时广播给所有设备
+     * @return 每个设备各自的发送结果
+     */
+    public Map<T, CompletableFuture<Void>> broadcast(UUID service, UUID characteristic, byte[] data, Predicate<T> predicate) {
+        HashMap<T, CompletableFuture<Void>> results = new HashMap<>();
+        RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic);
+        CharacteristicRole role = recorded != null ? recorded.role : CharacteristicRole.PLAIN;
+        boolean large = role == CharacteristicRole.REQUEST_LARGE || role == CharacteristicRole.INDICATE_LARGE;
+        //广播期间调用方可能修改数据，只复制一份
+        byte[] shared = data.clone();
+        //尽量让所有设备使用同一个请求号，请求号、请求号长度、是否压缩与包大小都相同的设备共享分包
+        int sharedId = -1;
+        HashMap<Long, byte[][]> frames = new HashMap<>();
+        byte[] compressed = null;
+        boolean compressTried = false;
+        long compressTime = 0;
+        for (T centralDevice : deviceSnapshot) {
+            BluetoothDevice device = centralDevice.getDevice();
+            if (device == null || (predicate != null && !predicate.test(centralDevice))) {
+                continue;
+            }
+            CentralSession session = getSession(device);
+            if (session == null) {
+                //设备正在断开，会话已经移除
+                results.put(centralDevice, notConnected(device));
+                continue;
+            }
+            if (!large) {
+                NotificationPacket packet = new NotificationPacket(service, characteristic, shared, false, null);
+                session.getSender().send(packet);
+                results.put(centralDevice, packet.getFuture());
+                continue;
+            }
+            if (!compressTried && session.isCompressionSupported()) {
+                compressTried = true;
+                long startTime = System.nanoTime();
+                compressed = compress(null, shared);
+                compressTime = System.nanoTime() - startTime;
+            }
+            RequestIds ids = session.getWriteIds();
+            int requestId;
+            try {
+                requestId = sharedId >= 0 && ids.tryAcquire(sharedId) ? sharedId : ids.acquire();
+            } catch (Exception e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                results.put(centralDevice, failed);
+                continue;
+            }
+            if (sharedId < 0) {
+                sharedId = requestId;
+            }
+            int idLength = ids.getIdLength();
+            boolean deflated = compressed != null && session.isCompressionSupported();
+            int packageSize = session.getPackageSize();
+            long frameKey = ((long) requestId << 32) | ((long) idLength << 24) | (deflated ? 1L << 20 : 0) | packageSize;
+            byte[][] packages = frames.get(frameKey);
+            if (packages == null) {
+                packages = deflated ? BytesWriter.frameCompressed(requestId, idLength, packageSize, compressed) : BytesWriter.frame(requestId, idLength, packageSize, shared);
+                frames.put(frameKey, packages);
+            }
+            long key = BytesWriter.createKey(session.getId(), recorded.handle, requestId);
+            BytesWriter writer = new BytesWriter(requestId, idLength, packageSize, key, device, service, characteristic, null);
+            if (deflated) {
+                writer.writeCompressedPackages(packages, compressed.length, shared.length, compressTime);
+            } else {
+                writer.writePackages(packages, shared.length);
+            }
+            session.putWriter(writer, ids);
+            session.getSender().send(writer);
+            results.put(centralDevice, writer.getFuture().thenApply(result -> null));
+        }
+        if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+            BleLogger.log(BleLogger.DEBUG, TAG, "Broadcast bytes(length: " + data.length + ") of " + characteristic + " to " + results.size() + " devices, framed " + frames.size() + " times.");
+        }
+        return results;
     }
 
     class ServicesCallback extends BluetoothGattServerCallback {
         final UUID service;
-        BluetoothGattServer server;
+        GattServer server;
 
         public boolean isMain = false;
 
@@ -981,7 +2240,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             this.service = service;
         }
 
-        public void initServer(BluetoothGattServer server) {
+        public void initServer(GattServer server) {
             this.server = server;
         }
 
@@ -1004,6 +2263,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
             if (!isMain) {
                 return;
             }
+            openSession(device);
             //TODO 这里还要再看下 因为会被调用很多次
             if (deviceMap.containsKey(device.getAddress())) {
                 onUpdateDevice(device);
@@ -1017,6 +2277,7 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
                 return;
             }
             //TODO 这里还要再看下 因为会被调用很多次
+            removeSession(device);
             if (deviceMap.containsKey(device.getAddress())) {
                 onRemoveDevice(device);
             }
@@ -1036,9 +2297,45 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
                 disconnect(device);
                 return;
             }
-            BleLogger.log(TAG, String.format("onCharacteristicReadRequest:%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, offset, characteristic.getUuid()));
-            byte[] responseData = self.onCharacteristicReadRequest(device, service, characteristic.getUuid());
-            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, responseData);// 响应客户端
+            if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+                BleLogger.log(BleLogger.DEBUG, TAG, String.format("onCharacteristicReadRequest:%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, offset, characteristic.getUuid()));
+            }
+            UUID uuid = characteristic.getUuid();
+            CentralSession session = getSession(device);
+            RecordedCharacteristic recorded = getRecordedCharacteristic(service, uuid);
+            if (session == null || recorded == null) {
+                //连接已经断开，会话已经移除，或者特征不是通过addCharacteristic添加的
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+                return;
+            }
+            int handle = recorded.handle;
+            //偏移读取从首次读取时的快照中截取，整个长读取只调用一次onRead，不会读到前后不一致的数据
+            byte[] value = offset > 0 ? session.getReadSnapshot(handle) : null;
+            boolean fromSnapshot = value != null;
+            //在调用onRead之前得到代数，期间快照失效时结果不会保存为快照
+            long generation = fromSnapshot ? 0 : session.getReadGeneration(handle);
+            if (!fromSnapshot) {
+                value = self.onCharacteristicReadRequest(device, service, uuid);
+            }
+            if (value == null) {
+                session.removeReadSnapshot(handle);
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+                return;
+            }
+            if (offset > value.length) {
+                session.removeReadSnapshot(handle);
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            //从offset开始截取，且不超过该设备的单个读响应长度
+            int end = Math.min(value.length, offset + session.getReadSize());
+            if (end - offset < session.getReadSize()) {
+                //响应不满时中心设备的读取即结束
+                session.removeReadSnapshot(handle);
+            } else if (!fromSnapshot) {
+                session.putReadSnapshot(handle, generation, value);
+            }
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, Arrays.copyOfRange(value, offset, end));// 响应客户端
         }
 
         @Override
@@ -1047,9 +2344,58 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
                 disconnect(device);
                 return;
             }
+            RecordedCharacteristic recorded = getRecordedCharacteristic(service, characteristic.getUuid());
+            if (recorded != null && recorded.role == CharacteristicRole.INGEST && !preparedWrite) {
+                //数据流只放入缓冲，不经过日志与派发
+                if (responseNeeded) {
+                    server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+                }
+                ingest(device, recorded, service, characteristic.getUuid(), value);
+                return;
+            }
             // 获取客户端发过来的数据
-            BleLogger.log(TAG, String.format("onCharacteristicWriteRequest:%s,%s,%s,%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, characteristic.getUuid(),
-                    preparedWrite, responseNeeded, offset, BytesUtil.bytesToString(value, false)));
+            if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+                BleLogger.log(BleLogger.DEBUG, TAG, String.format("onCharacteristicWriteRequest:%s,%s,%s,%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, characteristic.getUuid(),
+                        preparedWrite, responseNeeded, offset, BleLogger.dump(value)));
+            }
+            if (preparedWrite) {
+                //ATT长写入的一段，放入准备写入队列，执行写入时再一起交出
+                CentralSession session = getSession(device);
+                if (session == null) {
+                    if (responseNeeded) {
+                        server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+                    }
+                    return;
+                }
+                CharacteristicRole role = recorded != null ? recorded.role : CharacteristicRole.PLAIN;
+                if (recorded == null || (role != CharacteristicRole.PLAIN && role != CharacteristicRole.REQUEST)) {
+                    //数据流与长数据特征有自己的分包协议，组装后的值无法按原来的方式处理
+                    BleLogger.log(BleLogger.WARN, TAG, "Prepared write of " + role + " characteristic " + characteristic.getUuid() + " from " + device.getAddress() + " is not supported.");
+                    if (responseNeeded) {
+                        server.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+                    }
+                    return;
+                }
+                int status;
+                switch (session.getPreparedWrites().prepare(recorded.handle, service, characteristic.getUuid(), offset, value, preparedWriteLimit)) {
+                    case PreparedWrites.PREPARED:
+                        status = BluetoothGatt.GATT_SUCCESS;
+                        break;
+                    case PreparedWrites.INVALID_OFFSET:
+                        BleLogger.log(BleLogger.WARN, TAG, "Prepared write(offset: " + offset + ", length: " + value.length + ") of " + characteristic.getUuid() + " from " + device.getAddress() + " has invalid offset.");
+                        status = BluetoothGatt.GATT_INVALID_OFFSET;
+                        break;
+                    default:
+                        BleLogger.log(BleLogger.WARN, TAG, "Prepared write(offset: " + offset + ", length: " + value.length + ") of " + characteristic.getUuid() + " from " + device.getAddress() + " exceeds limit: " + preparedWriteLimit + ".");
+                        status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                        break;
+                }
+                if (responseNeeded) {
+                    //准备写入的应答需要原样带回数据，中心设备会进行校验
+                    server.sendResponse(device, requestId, status, offset, status == BluetoothGatt.GATT_SUCCESS ? value : null);
+                }
+                return;
+            }
             if (responseNeeded) {
                 server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
             }
@@ -1058,31 +2404,69 @@ public class BleServicesBase<T extends BleCentralDeviceBase> {
 
         @Override
         public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
-            BleLogger.log(TAG, String.format("onDescriptorReadRequest:%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, offset, descriptor.getUuid()));
+            if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+                BleLogger.log(BleLogger.DEBUG, TAG, String.format("onDescriptorReadRequest:%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, offset, descriptor.getUuid()));
+            }
             server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null); // 响应客户端
         }
 
         @Override
         public void onDescriptorWriteRequest(final BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            BleLogger.log(TAG, String.format("onDescriptorWriteRequest:%s,%s,%s,%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, descriptor.getUuid(),
-                    preparedWrite, responseNeeded, offset, BytesUtil.bytesToString(value, false)));
+            if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+                BleLogger.log(BleLogger.DEBUG, TAG, String.format("onDescriptorWriteRequest:%s,%s,%s,%s,%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, descriptor.getUuid(),
+                        preparedWrite, responseNeeded, offset, BleLogger.dump(value)));
+            }
             server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);// 响应客户端
         }
 
         @Override
         public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
-            BleLogger.log(TAG, String.format("onExecuteWrite:%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, execute));
+            if (BleLogger.isEnabled(BleLogger.DEBUG)) {
+                BleLogger.log(BleLogger.DEBUG, TAG, String.format("onExecuteWrite:%s,%s,%s,%s", device.getName(), device.getAddress(), requestId, execute));
+            }
+            CentralSession session = getSession(device);
+            if (session == null) {
+                //连接已经断开，准备写入队列随会话一起清除了
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                return;
+            }
+            PreparedWrites preparedWrites = session.getPreparedWrites();
+            if (!execute) {
+                preparedWrites.clear();
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                return;
+            }
+            List<PreparedWrites.Prepared> prepared = preparedWrites.drain();
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            //每个特征组装好的值按普通写入派发一次
+            for (PreparedWrites.Prepared write : prepared) {
+                self.onCharacteristicWriteRequest(device, write.getService(), write.getCharacteristic(), write.getValue());
+            }
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
-            BleLogger.log(TAG, String.format("onNotificationSent:%s,%s,%s", device.getName(), device.getAddress(), status));
+            if (BleLogger.isEnabled(BleLogger.TRACE)) {
+                BleLogger.log(BleLogger.TRACE, TAG, String.format("onNotificationSent:%s,%s,%s", device.getName(), device.getAddress(), status));
+            }
+            CentralSession session = sessions.get(device.getAddress());
+            if (session != null) {
+                session.getSender().onNotificationSent(status);
+            }
         }
 
         @Override
         public void onMtuChanged(BluetoothDevice device, int mtu) {
+            if (BleLogger.isEnabled(BleLogger.INFO)) {
+                BleLogger.log(BleLogger.INFO, TAG, String.format("onMtuChanged:%s,%s,%s", device.getName(), device.getAddress(), mtu));
+            }
+            CentralSession session = getSession(device);
+            if (session == null) {
+                //断开连接后迟到的回调，不再创建会话
+                return;
+            }
+            session.setMtu(mtu);
             packageSize = mtu - 3;
-            BleLogger.log(TAG, String.format("onMtuChanged:%s,%s,%s", device.getName(), device.getAddress(), mtu));
         }
     }
 }
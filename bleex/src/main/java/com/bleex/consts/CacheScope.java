@@ -0,0 +1,17 @@
+package com.bleex.consts;
+
+/**
+ * 读缓存的共享范围
+ *
+ * @author Agua.L
+ */
+public enum CacheScope {
+    /**
+     * 每个中心设备各自缓存，onRead的结果与设备有关时使用
+     */
+    DEVICE,
+    /**
+     * 所有中心设备共用一份缓存
+     */
+    GLOBAL
+}
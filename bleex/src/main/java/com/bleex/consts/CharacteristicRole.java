@@ -0,0 +1,33 @@
+package com.bleex.consts;
+
+/**
+ * 特征在BleEx中承担的角色，在添加特征时确定
+ *
+ * @author Agua.L
+ */
+public enum CharacteristicRole {
+    /**
+     * 普通特征，直接派发到读写回调
+     */
+    PLAIN,
+    /**
+     * 中心设备向外围设备请求一个MTU以内的包
+     */
+    REQUEST,
+    /**
+     * 中心设备向外围设备请求一个大数据包
+     */
+    REQUEST_LARGE,
+    /**
+     * 中心设备向外围设备写入一个大的数据包
+     */
+    WRITE_LARGE,
+    /**
+     * 外围设备向中心设备指示一个大的数据包
+     */
+    INDICATE_LARGE,
+    /**
+     * 中心设备高频无应答写入的数据流，按设备缓冲后批量派发
+     */
+    INGEST
+}
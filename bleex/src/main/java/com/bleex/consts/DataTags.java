@@ -14,6 +14,48 @@ public class DataTags {
      * S->M的长数据写的标签
      */
     public static byte[] SM_INDICATE_LARGE = new byte[]{110, 100};
+    /**
+     * M->S的压缩后的长数据写的标签，数据为原始长度(4字节)+不带zlib头的deflate数据
+     */
+    public static byte[] MS_WRITE_LARGE_DEFLATE = new byte[]{120, 111};
+    /**
+     * S->M的压缩后的长数据写的标签，只发给声明支持压缩的中心设备
+     */
+    public static byte[] SM_INDICATE_LARGE_DEFLATE = new byte[]{110, 101};
+    /**
+     * M->S的可续传的长数据写的标签，首包为：请求号+标签+数据总长度(4字节)+本段包个数(4字节)+传输id(8字节)+本段起始偏移(4字节)+包数据
+     */
+    public static byte[] MS_WRITE_LARGE_RESUMABLE = new byte[]{120, 113};
+    /**
+     * M->S的续传查询的标签，数据为传输id(8字节)
+     */
+    public static byte[] MS_RESUME_QUERY = new byte[]{120, 114};
+    /**
+     * S->M的续传查询应答的标签，数据为传输id(8字节)+已接收的长度(4字节)，没有可续传的数据时长度为0
+     */
+    public static byte[] SM_RESUME_OFFSET = new byte[]{110, 103};
+    /**
+     * S->M的补发请求的标签，请求中心设备只重发缺失的长数据分包，数据为若干个分包索引(每个4字节)
+     */
+    public static byte[] SM_RESEND_REQUEST = new byte[]{110, 102};
+    /**
+     * M->S的补发请求的标签，请求外设只重发缺失的长数据指示分包，格式与{@link #SM_RESEND_REQUEST}相同
+     */
+    public static byte[] MS_RESEND_REQUEST = new byte[]{120, 112};
+    /**
+     * M->S的协议版本协商的标签，格式为：0+标签+中心设备支持的最高版本(1字节)+可选的能力位(1字节)，
+     * 版本2中所有长数据分包开头的请求号都为2个字节
+     */
+    public static byte[] MS_PROTOCOL_VERSION = new byte[]{120, 115};
+    /**
+     * S->M的协议版本协商应答的标签，格式为：0+标签+双方都支持的最高版本(1字节)，
+     * 协商时带有能力位的，再加上双方都支持的能力位(1字节)
+     */
+    public static byte[] SM_PROTOCOL_VERSION = new byte[]{110, 104};
+    /**
+     * 协议版本协商中的能力位：支持解压缩以Deflate压缩的长数据
+     */
+    public static final int CAPABILITY_DEFLATE = 0x01;
     /**
      * M->S的长数据请求的标签
      */
@@ -22,4 +64,9 @@ public class DataTags {
      * S->M的长数据请求应答的标签
      */
     public static byte[] SM_RESPONSE_LARGE = new byte[]{99, 88};
+    /**
+     * S->M的请求失败应答的标签，请求被线程池拒绝、处理时抛出异常或没有得到应答时发出，只发给协商了协议版本2及以上的设备。
+     * 普通请求的格式为：请求号+标签；长数据请求以长数据指示发出，格式为：标签+请求号
+     */
+    public static byte[] SM_REQUEST_FAILED = new byte[]{99, 70};
 }
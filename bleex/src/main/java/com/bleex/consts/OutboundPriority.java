@@ -0,0 +1,21 @@
+package com.bleex.consts;
+
+/**
+ * 发送队列中操作的优先级，不同优先级的分包按权重交替发出，高优先级的操作可以在长数据的分包之间插队
+ *
+ * @author Agua.L
+ */
+public enum OutboundPriority {
+    /**
+     * 协议本身的控制消息，如补发请求、续传应答与版本协商
+     */
+    CONTROL,
+    /**
+     * 请求的应答以及普通的通知与指示
+     */
+    RESPONSE,
+    /**
+     * 长数据指示与广播
+     */
+    BULK
+}
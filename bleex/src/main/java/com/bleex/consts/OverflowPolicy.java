@@ -0,0 +1,17 @@
+package com.bleex.consts;
+
+/**
+ * 有界缓冲已满时的丢弃方式
+ *
+ * @author Agua.L
+ */
+public enum OverflowPolicy {
+    /**
+     * 丢弃缓冲中最早的数据，保留最新的数据
+     */
+    DROP_OLDEST,
+    /**
+     * 丢弃新到达的数据
+     */
+    DROP_NEWEST
+}
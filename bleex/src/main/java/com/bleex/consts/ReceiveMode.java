@@ -0,0 +1,21 @@
+package com.bleex.consts;
+
+/**
+ * 长数据写入特征接收数据的方式
+ *
+ * @author Agua.L
+ */
+public enum ReceiveMode {
+    /**
+     * 全部接收后以一个byte[]交给onWriteLarge
+     */
+    BUFFERED,
+    /**
+     * 每收到一个分包就交给onWriteLargeChunk，不在内存中保留数据
+     */
+    STREAMING,
+    /**
+     * 超过阈值的数据写入内存映射的临时文件，全部接收后以只读的映射缓冲交给onWriteLarge，未超过阈值时与BUFFERED相同
+     */
+    SPILL
+}
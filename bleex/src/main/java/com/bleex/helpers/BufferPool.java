@@ -0,0 +1,116 @@
+package com.bleex.helpers;
+
+import java.util.ArrayDeque;
+
+/**
+ * 分包缓冲池，按照缓冲的确切长度分级，分包长度由MTU决定，因此每个MTU只会占用少数几个级别。
+ * 池中保留的缓冲总量有上限，超出上限归还的缓冲直接丢弃。
+ *
+ * @author Agua.L
+ */
+public class BufferPool {
+    /**
+     * 可以池化的最大缓冲长度，即最大MTU(517)
+     */
+    public static final int MAX_BUFFER_SIZE = 517;
+
+    private final ArrayDeque<byte[]>[] classes;
+    private final int maxBuffersPerClass;
+    private final int maxPooledBytes;
+    private int pooledBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private int outstandingCount = 0;
+
+    /**
+     * @param maxBuffersPerClass 每个长度级别最多保留的缓冲个数
+     * @param maxPooledBytes     池中最多保留的字节数
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBuffersPerClass, int maxPooledBytes) {
+        this.classes = (ArrayDeque<byte[]>[]) new ArrayDeque<?>[MAX_BUFFER_SIZE + 1];
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * 借出一个指定长度的缓冲，内容不做清理
+     *
+     * @param size
+     * @return
+     */
+    public synchronized byte[] acquire(int size) {
+        outstandingCount++;
+        if (size <= MAX_BUFFER_SIZE) {
+            ArrayDeque<byte[]> buffers = classes[size];
+            if (buffers != null && buffers.size() > 0) {
+                byte[] buffer = buffers.poll();
+                pooledBytes -= buffer.length;
+                hitCount++;
+                return buffer;
+            }
+        }
+        missCount++;
+        return new byte[size];
+    }
+
+    /**
+     * 归还一个借出的缓冲，归还后不可再使用
+     *
+     * @param buffer
+     */
+    public synchronized void release(byte[] buffer) {
+        outstandingCount--;
+        int size = buffer.length;
+        if (size > MAX_BUFFER_SIZE || pooledBytes + size > maxPooledBytes) {
+            return;
+        }
+        ArrayDeque<byte[]> buffers = classes[size];
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            classes[size] = buffers;
+        }
+        if (buffers.size() < maxBuffersPerClass) {
+            buffers.add(buffer);
+            pooledBytes += size;
+        }
+    }
+
+    /**
+     * 从池中直接借到缓冲的次数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 池中没有可用缓冲而新分配的次数
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 已借出但尚未归还的缓冲个数
+     */
+    public synchronized int getOutstandingCount() {
+        return outstandingCount;
+    }
+
+    /**
+     * 当前池中保留的字节数
+     */
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * 清空池中保留的缓冲
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = null;
+        }
+        pooledBytes = 0;
+    }
+}
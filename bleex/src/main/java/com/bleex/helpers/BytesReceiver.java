@@ -3,13 +3,21 @@ package com.bleex.helpers;
 import android.bluetooth.BluetoothDevice;
 
 import com.bleex.consts.DataTags;
+import com.bleex.consts.ReceiveMode;
+import com.bleex.utils.BytesUtil;
+import com.bleex.utils.DeflateUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 
 /**
@@ -20,6 +28,20 @@ import java.util.UUID;
 public class BytesReceiver {
     //超时时间20秒，所有会使用到接收器的均为有应答的写，所以超时时间仅作为方式内存移除使用，固超时时间很长
     private static final long TIME_OUT = 20000;
+    //没有收到新的分包超过该时间时，请求补发缺失的分包
+    private static final long RESEND_INTERVAL = 1000;
+    //暂存的乱序分包的最大个数，超出的分包会被丢弃，之后作为缺失的分包请求补发
+    private static final int MAX_STASHED = 128;
+    //单次补发请求中的最大分包个数
+    private static final int MAX_MISSING = 128;
+    //流式接收或写入临时文件时，每次解压缩出的数据长度
+    private static final int INFLATE_CHUNK_SIZE = 4096;
+    //ATT的最大MTU为517，单次写入最多携带514个字节
+    private static final int MAX_PACKAGE_LENGTH = 514;
+    /**
+     * 默认的单个传输的最大长度，16MB
+     */
+    public static final int DEFAULT_MAX_TRANSFER_SIZE = 16 * 1024 * 1024;
 
     /**
      * 长数据接收器的回调
@@ -27,48 +49,90 @@ public class BytesReceiver {
      * @author Agua.L
      */
     public static abstract class BytesReceiveCallback {
-        public void onReceive(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex, byte[] data) {
+        public void onReceive(BluetoothDevice device, UUID service, UUID characteristic, int requestId, byte[] data) {
 
         }
 
-        public void onError(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex) {
+        /**
+         * 流式接收时收到了一个分包
+         *
+         * @param offset 分包数据在整个数据中的偏移
+         * @param chunk  分包数据的只读视图，只在回调期间有效
+         * @param length 数据总长度
+         */
+        public void onChunk(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int offset, ByteBuffer chunk, int length) {
 
         }
 
-        public void onTimeout(BluetoothDevice device, UUID service, UUID characteristic, byte requestIndex) {
+        /**
+         * 数据写入了内存映射的临时文件，全部接收完成
+         *
+         * @param data 只读的映射缓冲
+         */
+        public void onReceiveMapped(BluetoothDevice device, UUID service, UUID characteristic, int requestId, ByteBuffer data) {
 
         }
 
-        public void onFinish(BluetoothDevice device, UUID service, UUID characteristic, String key) {
+        /**
+         * 有分包缺失，需要请求发送方补发
+         *
+         * @param missing 缺失的分包索引，按从小到大的顺序
+         */
+        public void onMissing(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int[] missing) {
+
+        }
+
+        public void onError(BluetoothDevice device, UUID service, UUID characteristic, int requestId) {
+
+        }
+
+        /**
+         * 可续传的传输被中断，已接收的部分被保存，等待中心设备续传
+         *
+         * @param offset 已接收的长度
+         */
+        public void onSuspend(BluetoothDevice device, UUID service, UUID characteristic, int requestId, int offset) {
+
+        }
+
+        public void onTimeout(BluetoothDevice device, UUID service, UUID characteristic, int requestId) {
+
+        }
+
+        public void onFinish(BluetoothDevice device, UUID service, UUID characteristic, long key) {
         }
     }
 
     /**
-     * 创建一个key
+     * 创建一个key，由连接id、特征句柄与请求号组成，不会产生任何分配
      *
-     * @param device
-     * @param service
-     * @param characteristic
-     * @param index
+     * @param connectionId
+     * @param characteristicHandle
+     * @param requestId            无符号的请求号，最多2个字节
      * @return
      */
-    public static String createKey(BluetoothDevice device, UUID service, UUID characteristic, byte index) {
-        String key = device.getAddress() + "-" + service + "-" + characteristic + "_" + Integer.toHexString(index & 0xFF);
-        return key;
+    public static long createKey(int connectionId, int characteristicHandle, int requestId) {
+        return ((long) connectionId << 32) | ((long) (characteristicHandle & 0xFFFF) << 16) | (requestId & 0xFFFF);
     }
 
     private BluetoothDevice device;
+    private final String address;
     private UUID characteristic;
     private UUID service;
-    private String key;
-    private byte requestIndex;
+    private long key;
+    private int requestId;
+    //请求号的长度，见{@link RequestIds}
+    private int idLength;
 
-    public BytesReceiver(String key, byte requestIndex, BluetoothDevice device, UUID service, UUID characteristic) {
+    public BytesReceiver(long key, int requestId, int idLength, BluetoothDevice device, UUID service, UUID characteristic, TimeoutWheel timeoutWheel) {
         this.key = key;
-        this.requestIndex = requestIndex;
+        this.requestId = requestId;
+        this.idLength = idLength;
         this.device = device;
+        this.address = device.getAddress();
         this.service = service;
         this.characteristic = characteristic;
+        this.timeoutWheel = timeoutWheel;
         this.initTimer();
     }
 
@@ -83,104 +147,547 @@ public class BytesReceiver {
         this.callback = callback;
     }
 
+    private ReceiveMode mode = ReceiveMode.BUFFERED;
+    private File spillDirectory;
+    private int spillThreshold;
+
+    /**
+     * 设置接收方式，需要在收到首包前设置
+     *
+     * @param mode
+     */
+    public void setMode(ReceiveMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * 设置SPILL方式下临时文件的目录与阈值，超过阈值的数据才会写入临时文件
+     *
+     * @param directory
+     * @param threshold
+     */
+    public void setSpill(File directory, int threshold) {
+        this.spillDirectory = directory;
+        this.spillThreshold = threshold;
+    }
+
+    private CompressionStats compressionStats;
+    private TransferStore transferStore;
+    private int maxTransferSize = DEFAULT_MAX_TRANSFER_SIZE;
+    private int maxPackageLength = MAX_PACKAGE_LENGTH;
+    private int maxExpansionRatio = DeflateUtil.MAX_EXPANSION_RATIO;
+
+    /**
+     * 设置接收的限制，首包声明的数据长度超出限制时在分配内存或临时文件前即失败
+     *
+     * @param maxTransferSize  单个传输的最大长度
+     * @param maxPackageLength 该连接单个分包的最大长度，即MTU - 3
+     */
+    public void setLimits(int maxTransferSize, int maxPackageLength) {
+        this.maxTransferSize = maxTransferSize;
+        this.maxPackageLength = maxPackageLength;
+    }
+
+    /**
+     * 设置解压缩的统计
+     *
+     * @param compressionStats
+     */
+    public void setCompressionStats(CompressionStats compressionStats) {
+        this.compressionStats = compressionStats;
+    }
+
+    /**
+     * 设置中断时保存可续传传输的存储
+     *
+     * @param transferStore
+     */
+    public void setTransferStore(TransferStore transferStore) {
+        this.transferStore = transferStore;
+    }
+
+    //下一个要按顺序写入的分包索引
     private int index = 0;
     private int packageSize = 0;
     private int packageNum = 0;
-    private ArrayList<byte[]> packages = new ArrayList();
+    //按首包中的数据长度一次性分配，每个分包直接写入到自己的偏移处
+    private byte[] data;
+    //SPILL方式下数据写入的映射缓冲
+    private MappedByteBuffer mapped;
+    private int offset = 0;
+    //数据是否经过压缩，压缩的数据总是先完整接收再解压缩
+    private boolean compressed = false;
+    //可续传的传输的id，只有以可续传首包开始的传输才能续传
+    private boolean resumable = false;
+    private long transferId = 0;
+    //当前一段的首包的头部，用于区分重复的首包与请求号冲突的首包
+    private byte[] firstHeader;
+    //先于缺失分包到达的分包，按索引暂存，缺失的分包补齐后依次写入
+    private LongMap<byte[]> stashed;
+
+    /**
+     * 数据是否经过压缩
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
 
-    public void addPackage(byte[] pack) {
-        if (index == 0) {
+    /**
+     * 实际传输的数据长度，压缩时为压缩后的长度
+     */
+    public int getFramedLength() {
+        return packageSize;
+    }
+
+    /**
+     * 已经按顺序接收的长度
+     */
+    public synchronized int getOffset() {
+        return offset;
+    }
+
+    /**
+     * 可续传的传输的id
+     */
+    public long getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * 续传一个中断的传输，之后需要以可续传首包开始新的一段
+     *
+     * @param key
+     * @param requestId
+     * @param idLength  续传所在连接的请求号长度
+     * @param device
+     */
+    public synchronized void resume(long key, int requestId, int idLength, BluetoothDevice device) {
+        this.key = key;
+        this.requestId = requestId;
+        this.idLength = idLength;
+        this.device = device;
+        this.index = 0;
+        this.packageNum = 0;
+        this.initTimer();
+    }
+
+    /**
+     * 传输被中断，可续传的传输会被保存到传输存储中，其他的直接释放
+     */
+    public synchronized void interrupt() {
+        if (!park()) {
+            clear();
+        }
+    }
+
+    private boolean park() {
+        if (!resumable || transferStore == null || offset == 0 || offset >= packageSize) {
+            return false;
+        }
+        cancelTimer();
+        if (callback != null) {
+            callback.onSuspend(this.device, this.service, this.characteristic, requestId, offset);
+            callback.onFinish(this.device, this.service, this.characteristic, key);
+        }
+        this.callback = null;
+        this.device = null;
+        this.stashed = null;
+        transferStore.put(address, transferId, this, data != null ? data.length : mapped != null ? mapped.capacity() : 0);
+        return true;
+    }
+
+    public synchronized void addPackage(byte[] pack) {
+        if (index == 0 && pack.length >= idLength + 22 && hasTag(pack, DataTags.MS_WRITE_LARGE_RESUMABLE)) {
+            //是一段可续传传输的首包
+            if (!startSegment(pack)) {
+                return;
+            }
+            index++;
+        } else if (index == 0) {
             //是一个首包
-            if (pack[1] == DataTags.MS_WRITE_LARGE[0] && pack[2] == DataTags.MS_WRITE_LARGE[1]) {
-                ByteBuffer buffer = ByteBuffer.wrap(pack);
-                buffer.order(ByteOrder.BIG_ENDIAN);
-                buffer.position(3);
-                packageSize = buffer.getInt();
-                packageNum = buffer.getInt();
-                byte[] curPack = new byte[pack.length - 11];
-                buffer.get(curPack, 0, pack.length - 11);
-                packages.add(curPack);
-            } else {
-                if (callback != null) {
-                    cancelTimer();
-                    callback.onError(this.device, this.service, this.characteristic, requestIndex);
-                    callback.onFinish(this.device, this.service, this.characteristic, key);
+            if (resumable) {
+                //续传只能以可续传首包开始
+                onError();
+                return;
+            }
+            int header = idLength + 10;
+            if (pack.length >= header && hasTag(pack, DataTags.MS_WRITE_LARGE_DEFLATE)) {
+                compressed = true;
+            }
+            if (pack.length >= header && (compressed || hasTag(pack, DataTags.MS_WRITE_LARGE))) {
+                packageSize = BytesUtil.readInt(pack, idLength + 2);
+                packageNum = BytesUtil.readInt(pack, idLength + 6);
+                if (!checkSize(packageSize, packageNum, header)) {
+                    onError();
+                    return;
                 }
-                clear();
+                if (!allocate()) {
+                    onError();
+                    return;
+                }
+                if (!append(pack, header)) {
+                    return;
+                }
+                if (!checkOriginalLength()) {
+                    //首包中已经有原始长度，不必等到接收完成
+                    onError();
+                    return;
+                }
+                firstHeader = Arrays.copyOf(pack, header);
+            } else {
+                onError();
+                return;
             }
+            index++;
         } else {
-            ByteBuffer buffer = ByteBuffer.wrap(pack);
-            buffer.order(ByteOrder.BIG_ENDIAN);
-            buffer.position(1);
-            int curIndex = buffer.getInt();
-            if (curIndex == index) {
-                byte[] curPack = new byte[pack.length - 5];
-                buffer.get(curPack, 0, pack.length - 5);
-                packages.add(curPack);
-            } else {
-                cancelTimer();
-                if (callback != null) {
-                    callback.onError(this.device, this.service, this.characteristic, requestIndex);
-                    callback.onFinish(this.device, this.service, this.characteristic, key);
+            if (isFirstPackage(pack)) {
+                //补发时重复收到的首包
+                this.updateTimer();
+                return;
+            }
+            if (pack.length < idLength + 4) {
+                onError();
+                return;
+            }
+            int packIndex = BytesUtil.readInt(pack, idLength);
+            if (packIndex <= 0 || packIndex >= packageNum) {
+                onError();
+                return;
+            }
+            if (packIndex != index) {
+                if (packIndex > index) {
+                    stash(packIndex, pack);
                 }
-                clear();
+                this.updateTimer();
+                return;
             }
-        }
-        index++;
-        if (packageNum == index) {
-            int length = 0;
-            for (int i = 0; i < packages.size(); i++) {
-                length += packages.get(i).length;
+            if (!append(pack, idLength + 4)) {
+                return;
             }
-            ByteBuffer finalBuffer = ByteBuffer.allocate(length);
-            for (int i = 0; i < packages.size(); i++) {
-                finalBuffer.put(packages.get(i));
+            index++;
+            //补齐后写入之后已经暂存的分包
+            byte[] next;
+            while (stashed != null && (next = stashed.remove(index)) != null) {
+                if (!append(next, idLength + 4)) {
+                    return;
+                }
+                index++;
             }
-            byte[] finalBytes = finalBuffer.array();
-            if (finalBytes.length == packageSize) {
+        }
+        if (packageNum == index) {
+            if (offset == packageSize) {
                 cancelTimer();
-                if (callback != null) {
-                    callback.onReceive(this.device, this.service, this.characteristic, requestIndex, finalBytes);
-                    callback.onFinish(this.device, this.service, this.characteristic, key);
+                if (compressed && !inflate()) {
+                    onError();
+                    return;
                 }
-                clear();
-            } else {
-                cancelTimer();
                 if (callback != null) {
-                    callback.onError(this.device, this.service, this.characteristic, requestIndex);
+                    if (mapped != null) {
+                        mapped.position(0);
+                        callback.onReceiveMapped(this.device, this.service, this.characteristic, requestId, mapped.asReadOnlyBuffer());
+                    } else if (data != null) {
+                        callback.onReceive(this.device, this.service, this.characteristic, requestId, data);
+                    }
                     callback.onFinish(this.device, this.service, this.characteristic, key);
                 }
                 clear();
+            } else if (resumable && offset < packageSize) {
+                //可续传的传输可以分多段发送，等待下一段的首包
+                index = 0;
+                packageNum = 0;
+                this.updateTimer();
+            } else {
+                onError();
             }
+            return;
         }
         this.updateTimer();
     }
 
-    private Timer timer;
-    private long updateTimestamp = 0;
+    private boolean hasTag(byte[] pack, byte[] tag) {
+        return pack.length >= idLength + 2 && pack[idLength] == tag[0] && pack[idLength + 1] == tag[1];
+    }
 
-    private void initTimer() {
-        timer = new Timer();
-        updateTimestamp = System.currentTimeMillis();
-        TimerTask task = new TimerTask() {
-            @Override
-            public void run() {
-                long nowTimestamp = System.currentTimeMillis();
-                if (nowTimestamp - updateTimestamp >= TIME_OUT) {
-                    cancelTimer();
-                    if (callback != null) {
-                        callback.onTimeout(device, service, characteristic, requestIndex);
-                        callback.onFinish(device, service, characteristic, key);
+    private boolean isFirstPackage(byte[] pack) {
+        return hasTag(pack, DataTags.MS_WRITE_LARGE) || hasTag(pack, DataTags.MS_WRITE_LARGE_DEFLATE) || hasTag(pack, DataTags.MS_WRITE_LARGE_RESUMABLE);
+    }
+
+    /**
+     * 首包是否属于正在接收的传输。
+     * 请求号仍在途时中心设备又用它开始了另一个传输，两者的首包不同，此时需要放弃正在接收的传输，以免数据混在一起
+     *
+     * @param pack 一个首包
+     * @return 正在等待首包或是重复收到的同一个首包时返回true
+     */
+    public synchronized boolean matchesFirstPackage(byte[] pack) {
+        if (index == 0 || firstHeader == null) {
+            return true;
+        }
+        if (pack.length < firstHeader.length) {
+            return false;
+        }
+        for (int i = 0; i < firstHeader.length; i++) {
+            if (pack[i] != firstHeader[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 放弃正在接收的传输，回调接收失败
+     */
+    public synchronized void abort() {
+        onError();
+    }
+
+    //开始新的一段，续传时数据总长度、传输id与起始偏移需要与已接收的部分一致
+    private boolean startSegment(byte[] pack) {
+        int dataSize = BytesUtil.readInt(pack, idLength + 2);
+        int segmentPackageNum = BytesUtil.readInt(pack, idLength + 6);
+        long id = BytesUtil.readLong(pack, idLength + 10);
+        int from = BytesUtil.readInt(pack, idLength + 18);
+        //可续传的传输可以分多段发送，一段的包个数不能限制数据总长度，只检查最大长度
+        if (dataSize < 0 || dataSize > maxTransferSize || segmentPackageNum <= 0) {
+            onError();
+            return false;
+        }
+        if (resumable) {
+            if (id != transferId || dataSize != packageSize || from != offset) {
+                onError();
+                return false;
+            }
+        } else {
+            if (from != 0) {
+                onError();
+                return false;
+            }
+            resumable = true;
+            transferId = id;
+            packageSize = dataSize;
+            if (!allocate()) {
+                onError();
+                return false;
+            }
+        }
+        packageNum = segmentPackageNum;
+        firstHeader = Arrays.copyOf(pack, idLength + 22);
+        return append(pack, idLength + 22);
+    }
+
+    //数据长度需要在最大长度以内，且不超过声明的包个数按该连接的分包长度所能携带的长度
+    /**
+     * 设置压缩数据允许的最大压缩比，声明的原始长度超出时在解压缩前即失败
+     *
+     * @param maxExpansionRatio
+     */
+    public void setMaxExpansionRatio(int maxExpansionRatio) {
+        this.maxExpansionRatio = maxExpansionRatio;
+    }
+
+    //压缩数据声明的原始长度同样受最大长度限制，且不能超过最大压缩比
+    private boolean checkOriginalLength() {
+        if (!compressed || offset < 4) {
+            return true;
+        }
+        int length = DeflateUtil.getOriginalLength(data);
+        return DeflateUtil.isValidOriginalLength(length, packageSize, maxTransferSize, maxExpansionRatio);
+    }
+
+    private boolean checkSize(int dataSize, int packNum, int firstHeader) {
+        if (dataSize < 0 || packNum <= 0 || dataSize > maxTransferSize) {
+            return false;
+        }
+        long capacity = (long) (maxPackageLength - firstHeader) + (long) (packNum - 1) * (maxPackageLength - idLength - 4);
+        return dataSize <= capacity;
+    }
+
+    private void stash(int packIndex, byte[] pack) {
+        if (stashed == null) {
+            stashed = new LongMap<>();
+        }
+        if (stashed.size() < MAX_STASHED || stashed.containsKey(packIndex)) {
+            stashed.put(packIndex, pack);
+        }
+        if (packIndex == packageNum - 1) {
+            //最后一个分包已经到达，之前缺失的分包不会再按顺序到达
+            requestMissing();
+        }
+    }
+
+    //请求补发从当前位置到最后一个分包之间缺失的分包
+    private void requestMissing() {
+        if (callback == null || index == 0 || index >= packageNum) {
+            return;
+        }
+        int[] missing = new int[Math.min(packageNum - index, MAX_MISSING)];
+        int count = 0;
+        for (int i = index; i < packageNum && count < missing.length; i++) {
+            if (stashed == null || !stashed.containsKey(i)) {
+                missing[count++] = i;
+            }
+        }
+        if (count > 0) {
+            callback.onMissing(this.device, this.service, this.characteristic, requestId, Arrays.copyOf(missing, count));
+        }
+    }
+
+    //按接收方式准备存放数据的位置
+    private boolean allocate() {
+        if (compressed) {
+            //压缩的数据不能按偏移交给使用者，先完整接收
+            if (packageSize < 4) {
+                return false;
+            }
+            data = new byte[packageSize];
+            return true;
+        }
+        if (mode == ReceiveMode.STREAMING) {
+            return true;
+        }
+        if (mode == ReceiveMode.SPILL && spillDirectory != null && packageSize > spillThreshold) {
+            try {
+                mapped = mapTempFile(spillDirectory, packageSize);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        data = new byte[packageSize];
+        return true;
+    }
+
+    //创建并映射临时文件，映射后文件即被删除，映射的内存在缓冲被回收后释放
+    private static MappedByteBuffer mapTempFile(File directory, int size) throws IOException {
+        File file = File.createTempFile("bleex", ".tmp", directory);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    //解压缩全部数据，按接收方式放入数据、临时文件或逐段交给回调
+    private boolean inflate() {
+        if (!checkOriginalLength()) {
+            return false;
+        }
+        int length = DeflateUtil.getOriginalLength(data);
+        long startTime = System.nanoTime();
+        Inflater inflater = DeflateUtil.createInflater(data, packageSize);
+        try {
+            byte[] output;
+            boolean whole = false;
+            if (mode == ReceiveMode.STREAMING) {
+                output = new byte[Math.min(length, INFLATE_CHUNK_SIZE)];
+            } else if (mode == ReceiveMode.SPILL && spillDirectory != null && length > spillThreshold) {
+                mapped = mapTempFile(spillDirectory, length);
+                output = new byte[INFLATE_CHUNK_SIZE];
+            } else {
+                output = new byte[length];
+                whole = true;
+            }
+            int inflatedLength = 0;
+            while (inflatedLength < length) {
+                int start = whole ? inflatedLength : 0;
+                int inflated = inflater.inflate(output, start, Math.min(output.length - start, length - inflatedLength));
+                if (inflated == 0) {
+                    if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        break;
                     }
-                    clear();
+                    continue;
                 }
+                if (mapped != null) {
+                    mapped.put(output, 0, inflated);
+                } else if (!whole && callback != null) {
+                    callback.onChunk(this.device, this.service, this.characteristic, requestId, inflatedLength, ByteBuffer.wrap(output, 0, inflated).asReadOnlyBuffer(), length);
+                }
+                inflatedLength += inflated;
+            }
+            if (inflatedLength != length) {
+                return false;
+            }
+            data = whole ? output : null;
+            if (compressionStats != null) {
+                compressionStats.recordInflate(System.nanoTime() - startTime);
+            }
+            return true;
+        } catch (DataFormatException | IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //将分包的数据部分写入到目标位置
+    private boolean append(byte[] pack, int headerLength) {
+        int length = pack.length - headerLength;
+        if (offset + length > packageSize) {
+            onError();
+            return false;
+        }
+        if (mapped != null) {
+            mapped.position(offset);
+            mapped.put(pack, headerLength, length);
+        } else if (data != null) {
+            System.arraycopy(pack, headerLength, data, offset, length);
+        } else if (callback != null) {
+            callback.onChunk(this.device, this.service, this.characteristic, requestId, offset, ByteBuffer.wrap(pack, headerLength, length).slice().asReadOnlyBuffer(), packageSize);
+        }
+        offset += length;
+        return true;
+    }
+
+    private void onError() {
+        cancelTimer();
+        if (callback != null) {
+            callback.onError(this.device, this.service, this.characteristic, requestId);
+            callback.onFinish(this.device, this.service, this.characteristic, key);
+        }
+        clear();
+    }
+
+    private final TimeoutWheel timeoutWheel;
+    private TimeoutWheel.Timeout timer;
+    private long lastActiveTime;
+
+    private void initTimer() {
+        lastActiveTime = System.nanoTime();
+        timer = timeoutWheel.newTimeout(RESEND_INTERVAL, this::onIdle);
+    }
+
+    //一段时间没有收到分包，超过超时时间则放弃，否则请求补发
+    private void onIdle() {
+        //在时间轮的线程中触发，与接收分包互斥
+        synchronized (this) {
+            timer = null;
+            if (callback == null) {
+                return;
             }
-        };
-        timer.schedule(task, 0, 100);
+            if (System.nanoTime() - lastActiveTime >= TimeUnit.MILLISECONDS.toNanos(TIME_OUT)) {
+                if (park()) {
+                    return;
+                }
+                callback.onTimeout(device, service, characteristic, requestId);
+                callback.onFinish(device, service, characteristic, key);
+                clear();
+                return;
+            }
+            requestMissing();
+            timer = timeoutWheel.newTimeout(RESEND_INTERVAL, this::onIdle);
+        }
     }
 
     private void updateTimer() {
-        updateTimestamp = System.currentTimeMillis();
+        lastActiveTime = System.nanoTime();
+        if (this.timer != null) {
+            this.timer.touch(RESEND_INTERVAL);
+        }
     }
 
     private void cancelTimer() {
@@ -190,11 +697,14 @@ public class BytesReceiver {
         this.timer = null;
     }
 
-    public void clear() {
+    public synchronized void clear() {
         this.cancelTimer();
         this.device = null;
         this.service = null;
         this.characteristic = null;
         this.callback = null;
+        this.data = null;
+        this.mapped = null;
+        this.stashed = null;
     }
 }
@@ -3,141 +3,499 @@ package com.bleex.helpers;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
 
-import com.bleex.BleServicesBase;
 import com.bleex.consts.DataTags;
+import com.bleex.consts.OutboundPriority;
+import com.bleex.utils.BytesUtil;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.ReadableByteChannel;
+import java.util.BitSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * 长数据发送器
+ * 长数据发送器，由{@link PackageSender}按照发送窗口逐个拉取分包
  *
  * @author Agua.L
  */
 @SuppressLint("MissingPermission")
-public class BytesWriter {
+public class BytesWriter implements OutboundOperation {
     private static String TAG = "BytesWriter";
 
     /**
-     * 创建一个key
+     * 创建一个key，由连接id、特征句柄与请求号组成，不会产生任何分配
      *
-     * @param device
-     * @param service
-     * @param characteristic
-     * @param index
+     * @param connectionId
+     * @param characteristicHandle
+     * @param requestId            无符号的请求号，最多2个字节
      * @return
      */
-    public static String createKey(BluetoothDevice device, UUID service, UUID characteristic, byte index) {
-        String key = device.getAddress() + "-" + service + "-" + characteristic + "_" + Integer.toHexString(index & 0xFF);
-        return key;
+    public static long createKey(int connectionId, int characteristicHandle, int requestId) {
+        return ((long) connectionId << 32) | ((long) (characteristicHandle & 0xFFFF) << 16) | (requestId & 0xFFFF);
     }
 
-    byte writeIndex;
+    int requestId;
+    //请求号的长度，见{@link RequestIds}
+    int idLength;
     int packageSize;
-    String key;
+    long key;
     BluetoothDevice device;
-    BleServicesBase services;
     UUID service;
     UUID characteristic;
+    BufferPool bufferPool;
+
+    private byte[] data;
+    //首包中的起始包标识，压缩时使用压缩的标识
+    private byte[] tag = DataTags.SM_INDICATE_LARGE;
+    private int originalSize;
+    private long compressTime = 0;
+    //多个设备共享的已分好的包，广播时使用
+    private byte[][] packages;
+    //流式发送时的数据来源，分包时才读取
+    private ReadableByteChannel channel;
+    private int dataSize;
+    private int packageNum;
+    //下一个要拆出的包的数据起始位置与包索引
+    private int start = 0;
+    private int index = 0;
+    //已经得到发送回馈的包个数，以及需要得到回馈的包个数(包含补发的包)
+    private int sentNum = 0;
+    private int expectedNum = 0;
+    //等待补发的包索引
+    private final BitSet resendIndices = new BitSet();
+    private int resentNum = 0;
+    private long startTime = 0;
+    private long endTime = 0;
+    private final CompletableFuture<BytesWriter> future = new CompletableFuture<>();
+    private volatile OutboundPriority priority = OutboundPriority.BULK;
 
-    public BytesWriter(byte writeIndex, int packageSize, String key, BluetoothDevice device, BleServicesBase services, UUID service, UUID characteristic) {
-        this.writeIndex = writeIndex;
+    public BytesWriter(int requestId, int idLength, int packageSize, long key, BluetoothDevice device, UUID service, UUID characteristic, BufferPool bufferPool) {
+        this.requestId = requestId;
+        this.idLength = idLength;
+        this.bufferPool = bufferPool;
         this.packageSize = packageSize;
         this.key = key;
         this.device = device;
-        this.services = services;
         this.service = service;
         this.characteristic = characteristic;
     }
 
+    @Override
+    public UUID getService() {
+        return service;
+    }
+
+    @Override
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    @Override
+    public boolean isConfirm() {
+        return true;
+    }
+
+    @Override
+    public OutboundPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * 设置在发送队列中的优先级，默认为{@link OutboundPriority#BULK}，需要在加入发送队列前设置
+     *
+     * @param priority
+     */
+    public void setPriority(OutboundPriority priority) {
+        this.priority = priority;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * 请求号
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * 发送完成的回调，全部分包都得到回馈后完成，任一分包失败则异常完成
+     */
+    public CompletableFuture<BytesWriter> getFuture() {
+        return future;
+    }
+
+    /**
+     * 数据总长度，压缩时为压缩前的长度
+     */
+    public int getLength() {
+        return originalSize;
+    }
+
+    /**
+     * 实际发送的数据长度，压缩时为压缩后的长度
+     */
+    public int getFramedLength() {
+        return dataSize;
+    }
+
+    /**
+     * 为补发而驻留在内存中的数据长度，流式发送的数据不驻留
+     */
+    public synchronized int getRetainedSize() {
+        return data != null || packages != null ? dataSize : 0;
+    }
+
+    /**
+     * 是否压缩发送
+     */
+    public boolean isCompressed() {
+        return tag == DataTags.SM_INDICATE_LARGE_DEFLATE;
+    }
+
+    /**
+     * 压缩率，即实际发送的长度与原始长度之比，未压缩时为1
+     */
+    public double getCompressionRatio() {
+        return originalSize == 0 ? 1 : (double) dataSize / originalSize;
+    }
+
+    /**
+     * 压缩耗费的CPU时间，单位微秒
+     */
+    public long getCompressTime() {
+        return compressTime / 1000;
+    }
+
+    /**
+     * 从发出首包到最后一个包得到回馈的耗时，单位毫秒
+     */
+    public long getDuration() {
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        return startTime == 0 ? 0 : (end - startTime) / 1000000;
+    }
+
     /**
-     * 写数据
+     * 实际达到的传输速率，单位 字节/秒
+     */
+    public long getBytesPerSecond() {
+        long duration = Math.max(1, getDuration());
+        return originalSize * 1000L / duration;
+    }
+
+    /**
+     * 应接收方的补发请求重发的包个数
+     */
+    public synchronized int getResentCount() {
+        return resentNum;
+    }
+
+    /**
+     * 写数据，此时只计算分包信息，分包在发送窗口打开时才会被拆出
      *
      * @param data
      */
     public void writeBytes(byte[] data) {
+        this.data = data;
+        this.dataSize = data.length;
+        this.originalSize = data.length;
+        this.packageNum = computePackageNum(dataSize);
+        this.expectedNum = packageNum;
+    }
+
+    /**
+     * 写入压缩后的数据，首包中使用压缩的起始包标识
+     *
+     * @param compressed   由{@link com.bleex.utils.DeflateUtil#deflate}得到的数据
+     * @param originalSize 压缩前的长度
+     * @param compressTime 压缩耗费的时间，单位纳秒
+     */
+    public void writeCompressed(byte[] compressed, int originalSize, long compressTime) {
+        writeBytes(compressed);
+        this.tag = DataTags.SM_INDICATE_LARGE_DEFLATE;
+        this.originalSize = originalSize;
+        this.compressTime = compressTime;
+    }
+
+    private int computePackageNum(int dataSize) {
+        int firstSize = packageSize - idLength - 10;
+        int otherSize = packageSize - idLength - 4;
+        if (dataSize <= firstSize) {
+            return 1;
+        }
+        return 1 + (dataSize - firstSize + otherSize - 1) / otherSize;
+    }
+
+    /**
+     * 从通道中流式写数据，每拆出一个分包才读取该分包的数据，同时驻留在内存中的只有在途的分包。
+     * 发送结束或失败后通道会被关闭。
+     *
+     * @param channel
+     * @param length  要发送的数据总长度，写在首包中，通道提前结束时发送失败
+     */
+    public void writeChannel(ReadableByteChannel channel, int length) {
+        this.channel = channel;
+        this.dataSize = length;
+        this.originalSize = length;
+        this.packageNum = computePackageNum(length);
+        this.expectedNum = packageNum;
+    }
+
+    /**
+     * 使用已经分好的包，这些包可能同时被多个设备发送，不会被修改也不会归还到缓冲池
+     *
+     * @param packages 由{@link #frame}得到的分包
+     * @param dataSize 数据总长度
+     */
+    public void writePackages(byte[][] packages, int dataSize) {
+        this.packages = packages;
+        this.dataSize = dataSize;
+        this.originalSize = dataSize;
+        this.packageNum = packages.length;
+        this.expectedNum = packageNum;
+    }
+
+    /**
+     * 使用已经分好的压缩数据的包
+     *
+     * @param packages     由{@link #frameCompressed}得到的分包
+     * @param dataSize     压缩后的长度
+     * @param originalSize 压缩前的长度
+     * @param compressTime 压缩耗费的时间，单位纳秒
+     */
+    public void writeCompressedPackages(byte[][] packages, int dataSize, int originalSize, long compressTime) {
+        writePackages(packages, dataSize);
+        this.tag = DataTags.SM_INDICATE_LARGE_DEFLATE;
+        this.originalSize = originalSize;
+        this.compressTime = compressTime;
+    }
+
+    /**
+     * 将数据一次性分包，得到的分包可以通过{@link #writePackages}在多个MTU相同的设备间共享
+     *
+     * @param requestId
+     * @param idLength
+     * @param packageSize
+     * @param data
+     * @return
+     */
+    public static byte[][] frame(int requestId, int idLength, int packageSize, byte[] data) {
+        BytesWriter writer = new BytesWriter(requestId, idLength, packageSize, 0, null, null, null, null);
+        writer.writeBytes(data);
+        return writer.frameAll();
+    }
+
+    /**
+     * 将压缩后的数据一次性分包，首包中使用压缩的起始包标识
+     *
+     * @param requestId
+     * @param idLength
+     * @param packageSize
+     * @param compressed
+     * @return
+     */
+    public static byte[][] frameCompressed(int requestId, int idLength, int packageSize, byte[] compressed) {
+        BytesWriter writer = new BytesWriter(requestId, idLength, packageSize, 0, null, null, null, null);
+        writer.writeCompressed(compressed, 0, 0);
+        return writer.frameAll();
+    }
+
+    private byte[][] frameAll() {
+        byte[][] packages = new byte[packageNum][];
+        for (int i = 0; i < packages.length; i++) {
+            packages[i] = nextPackage();
+        }
+        return packages;
+    }
+
+    /**
+     * 是否还有未拆出的分包或等待补发的分包
+     */
+    @Override
+    public synchronized boolean hasNextPackage() {
+        return (data != null || packages != null || channel != null) && (index < packageNum || !resendIndices.isEmpty());
+    }
+
+    /**
+     * 拆出下一个分包，分包缓冲借自缓冲池，得到回馈后归还。全部拆出后依次拆出等待补发的分包
+     *
+     * @return
+     * @throws UncheckedIOException 流式发送时读取失败
+     */
+    @Override
+    public synchronized byte[] nextPackage() {
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+        }
+        if (index >= packageNum) {
+            int resendIndex = resendIndices.nextSetBit(0);
+            resendIndices.clear(resendIndex);
+            return packages != null ? packages[resendIndex] : createPackage(resendIndex, offsetOf(resendIndex));
+        }
+        byte[] pack = packages != null ? packages[index] : createPackage(index, start);
+        if (packages == null) {
+            start = Math.min(start + (index == 0 ? packageSize - idLength - 10 : packageSize - idLength - 4), dataSize);
+        }
+        index++;
+        return pack;
+    }
+
+    /**
+     * 接收方请求补发缺失的分包，只有已经拆出过的分包需要补发。
+     * 流式发送的数据已经不在内存中，无法补发
+     *
+     * @param indices 缺失的分包索引
+     * @return 是否有需要补发的分包，有则需要重新放入发送队列
+     */
+    public synchronized boolean resend(int[] indices) {
+        if (data == null && packages == null) {
+            return false;
+        }
+        int count = 0;
+        for (int resendIndex : indices) {
+            if (resendIndex >= 0 && resendIndex < index && !resendIndices.get(resendIndex)) {
+                resendIndices.set(resendIndex);
+                count++;
+            }
+        }
+        expectedNum += count;
+        resentNum += count;
+        return count > 0;
+    }
+
+    //分包的数据在整个数据中的偏移
+    private int offsetOf(int packIndex) {
+        return packIndex == 0 ? 0 : packageSize - idLength - 10 + (packIndex - 1) * (packageSize - idLength - 4);
+    }
+
+    private byte[] createPackage(int packIndex, int from) {
         //首包：请求号+起始包标识+包数据长度+包个数+报数据
         //其他包：请求号+包索引+包数据
-        int dataSize = data.length;
-        int start = 0;
-        int index = 0;
-        ArrayList<byte[]> packages = new ArrayList();
-        ByteBuffer bufferData = ByteBuffer.wrap(data);
-        while (start < dataSize) {
-            if (start == 0) {
-                int length = Math.min(packageSize, (dataSize - start) + 11);
-                byte[] pack = new byte[length];
-                //请求号
-                pack[0] = writeIndex;
-                //起始包标识
-                pack[1] = DataTags.SM_INDICATE_LARGE[0];
-                pack[2] = DataTags.SM_INDICATE_LARGE[1];
-                //数据长度
-                ByteBuffer bufferPack = ByteBuffer.wrap(pack);
-                bufferPack.order(ByteOrder.BIG_ENDIAN);
-                bufferPack.position(3);
-                bufferPack.putInt(dataSize);
-                bufferPack.position(3);
-                bufferPack.get(pack, 3, 4);
-                //包个数，先填写空白
-                pack[7] = 0;
-                pack[8] = 0;
-                pack[9] = 0;
-                pack[10] = 0;
-                //包数据
-                bufferData.position(start);
-                int end = Math.min(packageSize - 11, dataSize);
-                bufferData.get(pack, 11, end - start);
-                start = end;
-                packages.add(pack);
-            } else {
-                int length = Math.min(packageSize, (dataSize - start) + 5);
-                byte[] pack = new byte[length];
-                //请求号
-                pack[0] = writeIndex;
-                //包索引数
-                ByteBuffer bufferPack = ByteBuffer.wrap(data);
-                bufferPack.order(ByteOrder.BIG_ENDIAN);
-                bufferPack.position(1);
-                bufferPack.putInt(index);
-                bufferPack.position(1);
-                bufferPack.get(pack, 1, 4);
-
-                //包数据
-                bufferData.position(start);
-                int end = Math.min(start + packageSize - 5, dataSize);
-                bufferData.get(pack, 5, end - start);
-                start = end;
-                packages.add(pack);
-            }
-            index++;
+        byte[] pack;
+        if (packIndex == 0) {
+            int header = idLength + 10;
+            int end = Math.min(packageSize - header, dataSize);
+            pack = allocate(end - from + header);
+            //请求号
+            RequestIds.write(pack, idLength, requestId);
+            //起始包标识
+            pack[idLength] = tag[0];
+            pack[idLength + 1] = tag[1];
+            //数据长度
+            BytesUtil.writeInt(pack, idLength + 2, dataSize);
+            //包个数
+            BytesUtil.writeInt(pack, idLength + 6, packageNum);
+            //包数据
+            copyData(pack, header, from, end - from);
+        } else {
+            int header = idLength + 4;
+            int end = Math.min(from + packageSize - header, dataSize);
+            pack = allocate(end - from + header);
+            //请求号
+            RequestIds.write(pack, idLength, requestId);
+            //包索引数
+            BytesUtil.writeInt(pack, idLength, packIndex);
+            //包数据
+            copyData(pack, header, from, end - from);
         }
-        //填补包个数
-        byte[] firstPack = packages.get(0);
-        ByteBuffer buffer = ByteBuffer.wrap(firstPack);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.position(7);
-        buffer.putInt(packages.size());
-        buffer.position(7);
-        buffer.get(firstPack, 7, 4);
+        return pack;
+    }
+
+    private void copyData(byte[] pack, int offset, int from, int length) {
+        if (channel == null) {
+            System.arraycopy(data, from, pack, offset, length);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pack, offset, length);
         try {
-            for (int i = 0; i < packages.size(); i++) {
-                byte[] pack = packages.get(i);
-                services.notifyCharacteristicChanged(device, service, characteristic, pack, true);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Channel ended at " + (from + length - buffer.remaining()) + " of " + dataSize + " bytes.");
+                }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            releasePackage(pack);
+            throw new UncheckedIOException(e);
         }
-        this.clear();
     }
 
+    private byte[] allocate(int size) {
+        return bufferPool != null ? bufferPool.acquire(size) : new byte[size];
+    }
+
+    /**
+     * 一个分包得到了发送回馈
+     *
+     * @param pack
+     */
+    @Override
+    public void onPackageSent(byte[] pack) {
+        releasePackage(pack);
+        synchronized (this) {
+            sentNum++;
+            if (sentNum != expectedNum || future.isDone()) {
+                return;
+            }
+            endTime = System.nanoTime();
+            //完成后保留数据，接收方仍可能请求补发
+            closeChannel();
+            this.device = null;
+        }
+        future.complete(this);
+    }
+
+    /**
+     * 归还一个分包的缓冲
+     *
+     * @param pack
+     */
+    @Override
+    public void releasePackage(byte[] pack) {
+        if (bufferPool != null && packages == null) {
+            bufferPool.release(pack);
+        }
+    }
+
+    /**
+     * 发送失败
+     *
+     * @param e
+     */
+    @Override
+    public void onError(Exception e) {
+        synchronized (this) {
+            endTime = System.nanoTime();
+            this.clear();
+        }
+        future.completeExceptionally(e);
+    }
+
+    @Override
+    public String toString() {
+        return "long bytes " + Long.toHexString(key);
+    }
 
     private void clear() {
+        this.data = null;
+        this.packages = null;
+        resendIndices.clear();
+        closeChannel();
         this.device = null;
-        this.services = null;
-        this.service = null;
-        this.characteristic = null;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
     }
 }
@@ -0,0 +1,455 @@
+package com.bleex.helpers;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bleex.BleServicesBase;
+import com.bleex.consts.OverflowPolicy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * 一个已连接中心设备的连接状态，从连接建立开始，到断开连接时释放。
+ * 每个设备的接收器都在各自的会话中，不同设备之间互不竞争。
+ *
+ * @author Agua.L
+ */
+public class CentralSession {
+    /**
+     * 未协商时的默认MTU
+     */
+    public static final int DEFAULT_MTU = 23;
+    /**
+     * 保留的最近发出的长数据个数，在被挤出之前都可以应中心设备的请求补发分包
+     */
+    public static final int MAX_RETAINED_WRITERS = 8;
+    /**
+     * 保留的长数据驻留在内存中的总长度上限，超出时最早的会被挤出，单个超过此长度的长数据不会保留，无法补发
+     */
+    public static final int MAX_RETAINED_BYTES = 256 * 1024;
+    /**
+     * 长数据发送结束后默认保留的时间，单位毫秒
+     */
+    public static final long RETAIN_TIME = 30000;
+
+    /**
+     * 保留的长数据，请求号在被挤出之前一直占用，补发时不会与之后的传输混淆
+     */
+    private static class Retained {
+        final BytesWriter writer;
+        final RequestIds ids;
+        //发送结束后开始计时，调用时需持有writers的锁
+        TimeoutWheel.Timeout expiry;
+
+        Retained(BytesWriter writer, RequestIds ids) {
+            this.writer = writer;
+            this.ids = ids;
+        }
+    }
+
+    private final int id;
+    private final BluetoothDevice device;
+    private final String address;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile boolean compressionSupported = false;
+    private volatile RequestIds writeIds = new RequestIds(RequestIds.VERSION_1);
+    private final PackageSender sender;
+    private final LongMap<BytesReceiver> receivers = new LongMap<>();
+    private final ArrayDeque<Retained> writers = new ArrayDeque<>();
+    private final TimeoutWheel retainWheel;
+    private volatile long retainTime = RETAIN_TIME;
+    //正在按偏移读取的特征值快照，key为特征的句柄
+    private final LongMap<byte[]> readSnapshots = new LongMap<>();
+    //快照失效的次数，key为特征的句柄，失效前开始调用onRead得到的值不会再保存为快照
+    private final LongMap<Long> readGenerations = new LongMap<>();
+    private final PreparedWrites preparedWrites = new PreparedWrites();
+    //数据流特征的缓冲，key为特征的句柄
+    private final LongMap<IngestBuffer> ingestBuffers = new LongMap<>();
+
+    public CentralSession(int id, BleServicesBase<?> services, BluetoothDevice device, OutboundScheduler scheduler, int window, TimeoutWheel retainWheel) {
+        this.id = id;
+        this.device = device;
+        this.address = device.getAddress();
+        this.sender = new PackageSender(services, device, scheduler, window);
+        this.retainWheel = retainWheel;
+    }
+
+    /**
+     * 连接id，每次建立连接时分配，用于组成传输的key
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * 设备
+     */
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * 设备地址
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * 该设备协商后的MTU
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * 该设备能否解压缩长数据，收到该设备发来的压缩数据后即认为支持
+     */
+    public boolean isCompressionSupported() {
+        return compressionSupported;
+    }
+
+    public void setCompressionSupported(boolean compressionSupported) {
+        this.compressionSupported = compressionSupported;
+    }
+
+    /**
+     * 协商的长数据协议版本，未协商时为{@link RequestIds#VERSION_1}
+     */
+    public int getProtocolVersion() {
+        return writeIds.getIdLength() == 2 ? RequestIds.VERSION_2 : RequestIds.VERSION_1;
+    }
+
+    /**
+     * 设置协议版本，之后发出与收到的长数据都使用该版本的请求号长度
+     *
+     * @param version
+     */
+    public void setProtocolVersion(int version) {
+        if (RequestIds.getLength(version) != writeIds.getIdLength()) {
+            writeIds = new RequestIds(version);
+        }
+    }
+
+    /**
+     * 长数据分包中请求号的长度
+     */
+    public int getIdLength() {
+        return writeIds.getIdLength();
+    }
+
+    /**
+     * 该连接发出的长数据的请求号
+     */
+    public RequestIds getWriteIds() {
+        return writeIds;
+    }
+
+    /**
+     * 单个通知或指示可携带的最大数据长度
+     */
+    public int getPackageSize() {
+        return mtu - 3;
+    }
+
+    /**
+     * 单个读响应可携带的最大数据长度
+     */
+    public int getReadSize() {
+        return mtu - 1;
+    }
+
+    /**
+     * 该设备的发送队列
+     */
+    public PackageSender getSender() {
+        return sender;
+    }
+
+    /**
+     * 得到正在接收的长数据
+     *
+     * @param key
+     * @return
+     */
+    public BytesReceiver getReceiver(long key) {
+        synchronized (receivers) {
+            return receivers.get(key);
+        }
+    }
+
+    public void putReceiver(long key, BytesReceiver receiver) {
+        synchronized (receivers) {
+            receivers.put(key, receiver);
+        }
+    }
+
+    public void removeReceiver(long key) {
+        synchronized (receivers) {
+            receivers.remove(key);
+        }
+    }
+
+    /**
+     * 设置长数据发送结束后保留的时间，只影响之后结束的长数据
+     *
+     * @param retainTime 单位毫秒
+     */
+    public void setRetainTime(long retainTime) {
+        this.retainTime = retainTime;
+    }
+
+    /**
+     * 记录一个发出的长数据，超出保留个数或总长度时最早的会被挤出，发送结束后超过保留时间也会被挤出。
+     * 长数据的请求号在被挤出且发送结束后才归还，之前不会分配给其他传输
+     *
+     * @param writer
+     * @param ids    分配请求号的请求号集合
+     */
+    public void putWriter(BytesWriter writer, RequestIds ids) {
+        Retained retained = new Retained(writer, ids);
+        ArrayList<Retained> evicted = new ArrayList<>();
+        synchronized (writers) {
+            writers.addLast(retained);
+            evictWriters(evicted);
+        }
+        releaseWriters(evicted);
+        writer.getFuture().whenComplete((result, e) -> onWriterComplete(retained));
+    }
+
+    //发送结束时数据长度已经确定，再按长度挤出一次，仍保留的开始计时
+    private void onWriterComplete(Retained retained) {
+        ArrayList<Retained> evicted = new ArrayList<>();
+        synchronized (writers) {
+            evictWriters(evicted);
+            if (writers.contains(retained)) {
+                retained.expiry = retainWheel.newTimeout(retainTime, () -> expireWriter(retained));
+            }
+        }
+        releaseWriters(evicted);
+    }
+
+    private void expireWriter(Retained retained) {
+        synchronized (writers) {
+            if (!writers.remove(retained)) {
+                return;
+            }
+        }
+        retained.ids.release(retained.writer.getRequestId());
+    }
+
+    /**
+     * 得到最近发出的长数据
+     *
+     * @param key
+     * @return 已经被挤出时返回null
+     */
+    public BytesWriter getWriter(long key) {
+        synchronized (writers) {
+            for (Retained retained : writers) {
+                if (retained.writer.getKey() == key) {
+                    return retained.writer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 保留的长数据个数
+     */
+    public int getRetainedWriterCount() {
+        synchronized (writers) {
+            return writers.size();
+        }
+    }
+
+    //依次挤出超长的、超出个数的与超出总长度的，调用时需持有writers的锁
+    private void evictWriters(ArrayList<Retained> evicted) {
+        long retainedBytes = 0;
+        Iterator<Retained> iterator = writers.iterator();
+        while (iterator.hasNext()) {
+            Retained retained = iterator.next();
+            int size = retained.writer.getRetainedSize();
+            if (size > MAX_RETAINED_BYTES) {
+                iterator.remove();
+                evicted.add(retained);
+            } else {
+                retainedBytes += size;
+            }
+        }
+        while (writers.size() > MAX_RETAINED_WRITERS) {
+            Retained retained = writers.pollFirst();
+            retainedBytes -= retained.writer.getRetainedSize();
+            evicted.add(retained);
+        }
+        while (retainedBytes > MAX_RETAINED_BYTES) {
+            Retained retained = writers.pollFirst();
+            retainedBytes -= retained.writer.getRetainedSize();
+            evicted.add(retained);
+        }
+        for (Retained retained : evicted) {
+            if (retained.expiry != null) {
+                retained.expiry.cancel();
+            }
+        }
+    }
+
+    //挤出的长数据发送结束后归还请求号
+    private static void releaseWriters(ArrayList<Retained> evicted) {
+        for (Retained retained : evicted) {
+            int requestId = retained.writer.getRequestId();
+            RequestIds ids = retained.ids;
+            retained.writer.getFuture().whenComplete((result, e) -> ids.release(requestId));
+        }
+    }
+
+    /**
+     * 得到数据流特征的缓冲
+     *
+     * @param handle 特征的句柄
+     * @return
+     */
+    public IngestBuffer getIngestBuffer(int handle) {
+        synchronized (ingestBuffers) {
+            return ingestBuffers.get(handle);
+        }
+    }
+
+    /**
+     * 得到数据流特征的缓冲，不存在时创建
+     *
+     * @param handle         特征的句柄
+     * @param service
+     * @param characteristic
+     * @param capacity
+     * @param policy
+     * @return
+     */
+    public IngestBuffer getIngestBuffer(int handle, UUID service, UUID characteristic, int capacity, OverflowPolicy policy) {
+        synchronized (ingestBuffers) {
+            IngestBuffer buffer = ingestBuffers.get(handle);
+            if (buffer == null) {
+                buffer = new IngestBuffer(service, characteristic, capacity, policy);
+                ingestBuffers.put(handle, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * 该连接的准备写入队列
+     */
+    public PreparedWrites getPreparedWrites() {
+        return preparedWrites;
+    }
+
+    /**
+     * 得到正在按偏移读取的特征值快照
+     *
+     * @param handle 特征的句柄
+     * @return 没有正在进行的长读取时返回null
+     */
+    public byte[] getReadSnapshot(int handle) {
+        synchronized (readSnapshots) {
+            return readSnapshots.get(handle);
+        }
+    }
+
+    /**
+     * 得到某个特征快照的当前代数，需要在调用onRead之前得到
+     *
+     * @param handle
+     * @return
+     */
+    public long getReadGeneration(int handle) {
+        synchronized (readSnapshots) {
+            Long generation = readGenerations.get(handle);
+            return generation != null ? generation : 0;
+        }
+    }
+
+    /**
+     * 保存一次长读取的特征值，之后的偏移读取都从中截取，调用onRead期间快照失效过时不保存
+     *
+     * @param handle
+     * @param generation 调用onRead之前通过{@link #getReadGeneration(int)}得到的代数
+     * @param value
+     */
+    public void putReadSnapshot(int handle, long generation, byte[] value) {
+        synchronized (readSnapshots) {
+            if (getReadGeneration(handle) == generation) {
+                readSnapshots.put(handle, value);
+            }
+        }
+    }
+
+    /**
+     * 长读取结束，释放快照
+     *
+     * @param handle
+     */
+    public void removeReadSnapshot(int handle) {
+        synchronized (readSnapshots) {
+            readSnapshots.remove(handle);
+        }
+    }
+
+    /**
+     * 特征值已经改变，释放快照，正在调用onRead得到的值也不会再保存为快照
+     *
+     * @param handle
+     */
+    public void invalidateReadSnapshot(int handle) {
+        synchronized (readSnapshots) {
+            readSnapshots.remove(handle);
+            readGenerations.put(handle, getReadGeneration(handle) + 1);
+        }
+    }
+
+    /**
+     * 正在进行的长读取个数
+     */
+    public int getReadSnapshotCount() {
+        synchronized (readSnapshots) {
+            return readSnapshots.size();
+        }
+    }
+
+    public void clear() {
+        sender.clear();
+        synchronized (writers) {
+            for (Retained retained : writers) {
+                if (retained.expiry != null) {
+                    retained.expiry.cancel();
+                }
+            }
+            writers.clear();
+        }
+        synchronized (readSnapshots) {
+            readSnapshots.clear();
+            readGenerations.clear();
+        }
+        preparedWrites.clear();
+        synchronized (ingestBuffers) {
+            ingestBuffers.forEachValue(IngestBuffer::clear);
+            ingestBuffers.clear();
+        }
+        ArrayList<BytesReceiver> cleared;
+        synchronized (receivers) {
+            cleared = new ArrayList<>(receivers.size());
+            receivers.forEachValue(cleared::add);
+            receivers.clear();
+        }
+        //在锁外释放，避免与接收器的超时回调互相等待，可续传的传输会被保存
+        for (BytesReceiver receiver : cleared) {
+            receiver.interrupt();
+        }
+    }
+}
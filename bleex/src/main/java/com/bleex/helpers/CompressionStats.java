@@ -0,0 +1,96 @@
+package com.bleex.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 长数据压缩的统计
+ *
+ * @author Agua.L
+ */
+public class CompressionStats {
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong();
+    private final AtomicLong inflatedCount = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    /**
+     * 记录一次压缩
+     *
+     * @param originalLength
+     * @param compressedLength 没有变小而放弃压缩时为-1
+     * @param nanos
+     */
+    public void recordDeflate(int originalLength, int compressedLength, long nanos) {
+        deflateNanos.addAndGet(nanos);
+        if (compressedLength < 0) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+        compressedCount.incrementAndGet();
+        originalBytes.addAndGet(originalLength);
+        compressedBytes.addAndGet(compressedLength);
+    }
+
+    /**
+     * 记录一次解压缩
+     *
+     * @param nanos
+     */
+    public void recordInflate(long nanos) {
+        inflatedCount.incrementAndGet();
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * 压缩发出的长数据个数
+     */
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * 尝试压缩但没有变小的长数据个数
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * 解压缩收到的长数据个数
+     */
+    public long getInflatedCount() {
+        return inflatedCount.get();
+    }
+
+    /**
+     * 压缩发出的长数据的压缩率，即压缩后与压缩前的字节数之比
+     */
+    public double getRatio() {
+        long original = originalBytes.get();
+        return original == 0 ? 1 : (double) compressedBytes.get() / original;
+    }
+
+    /**
+     * 压缩节省的字节数
+     */
+    public long getSavedBytes() {
+        return originalBytes.get() - compressedBytes.get();
+    }
+
+    /**
+     * 压缩累计耗费的CPU时间，单位微秒
+     */
+    public long getDeflateTime() {
+        return deflateNanos.get() / 1000;
+    }
+
+    /**
+     * 解压缩累计耗费的CPU时间，单位微秒
+     */
+    public long getInflateTime() {
+        return inflateNanos.get() / 1000;
+    }
+}
@@ -0,0 +1,179 @@
+package com.bleex.helpers;
+
+import com.bleex.consts.OverflowPolicy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 单个设备单个数据流特征的有界环形缓冲。
+ * binder线程只负责放入，工作线程批量取出，同一缓冲同一时间只有一个取出任务，批次按到达顺序派发
+ *
+ * @author Agua.L
+ */
+public class IngestBuffer {
+    /**
+     * 一次取出的数据
+     */
+    public static class Batch {
+        private final List<byte[]> values;
+        private final long[] timestamps;
+
+        Batch(List<byte[]> values, long[] timestamps) {
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+
+        /**
+         * 按到达顺序排列的数据
+         */
+        public List<byte[]> getValues() {
+            return values;
+        }
+
+        /**
+         * 每个数据到达时的System.nanoTime()
+         */
+        public long[] getTimestamps() {
+            return timestamps;
+        }
+    }
+
+    private final UUID service;
+    private final UUID characteristic;
+    private final OverflowPolicy policy;
+    private final byte[][] values;
+    private final long[] timestamps;
+    private int head = 0;
+    private int size = 0;
+    //是否已经有取出任务在等待或执行
+    private boolean scheduled = false;
+    private long receivedCount = 0;
+    private long droppedCount = 0;
+    private long deliveredCount = 0;
+    private long batchCount = 0;
+
+    public IngestBuffer(UUID service, UUID characteristic, int capacity, OverflowPolicy policy) {
+        this.service = service;
+        this.characteristic = characteristic;
+        this.policy = policy;
+        this.values = new byte[Math.max(1, capacity)][];
+        this.timestamps = new long[values.length];
+    }
+
+    public UUID getService() {
+        return service;
+    }
+
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * 放入一个数据，缓冲已满时按丢弃方式丢弃最早的或者新到达的数据
+     *
+     * @param value     放入后不可再修改
+     * @param timestamp
+     * @return 需要安排取出任务时返回true
+     */
+    public synchronized boolean offer(byte[] value, long timestamp) {
+        receivedCount++;
+        if (size == values.length) {
+            droppedCount++;
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            }
+            values[head] = null;
+            head = (head + 1) % values.length;
+            size--;
+        }
+        int tail = (head + size) % values.length;
+        values[tail] = value;
+        timestamps[tail] = timestamp;
+        size++;
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * 取出缓冲中所有的数据，由取出任务循环调用
+     *
+     * @return 缓冲为空时返回null，并结束本次取出任务
+     */
+    public synchronized Batch poll() {
+        if (size == 0) {
+            scheduled = false;
+            return null;
+        }
+        byte[][] batchValues = new byte[size][];
+        long[] batchTimestamps = new long[size];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % values.length;
+            batchValues[i] = values[index];
+            batchTimestamps[i] = timestamps[index];
+            values[index] = null;
+        }
+        deliveredCount += size;
+        batchCount++;
+        head = 0;
+        size = 0;
+        return new Batch(Arrays.asList(batchValues), batchTimestamps);
+    }
+
+    /**
+     * 丢弃缓冲中所有的数据，并结束取出任务
+     */
+    public synchronized void clear() {
+        droppedCount += size;
+        Arrays.fill(values, null);
+        head = 0;
+        size = 0;
+        scheduled = false;
+    }
+
+    /**
+     * 缓冲中的数据个数
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 缓冲的容量
+     */
+    public int getCapacity() {
+        return values.length;
+    }
+
+    /**
+     * 收到的数据个数
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * 因缓冲已满或断开连接而丢弃的数据个数
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * 已经派发的数据个数
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * 已经派发的批次数
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+}
@@ -0,0 +1,149 @@
+package com.bleex.helpers;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * 以long为键的开放寻址哈希表，查找、插入与删除均不会装箱或分配对象。
+ * 键0保留为空槽标记，不可使用。
+ *
+ * @author Agua.L
+ */
+public class LongMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongMap() {
+        this(16);
+    }
+
+    public LongMap(int capacity) {
+        int length = 8;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Key 0 is reserved.");
+        }
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        //向后移位删除，保证后续探测链不被截断
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != 0) {
+            int home = hash(keys[j]) & mask;
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 遍历所有的值
+     *
+     * @param action
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int length) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int j = hash(key) & mask;
+                while (keys[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = key;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.bleex.helpers;
+
+import com.bleex.consts.OutboundPriority;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 单个通知或指示，排队到发送队列中，得到协议栈的回馈后完成
+ *
+ * @author Agua.L
+ */
+public class NotificationPacket implements OutboundOperation {
+    private final UUID service;
+    private final UUID characteristic;
+    private final boolean confirm;
+    private final BufferPool bufferPool;
+    private final OutboundPriority priority;
+    private byte[] value;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    /**
+     * @param service
+     * @param characteristic
+     * @param value          发送的内容，发送前不可再修改
+     * @param confirm        是否为指示
+     * @param bufferPool     value借自的缓冲池，发送后归还，不是借来的缓冲时为null
+     */
+    public NotificationPacket(UUID service, UUID characteristic, byte[] value, boolean confirm, BufferPool bufferPool) {
+        this(service, characteristic, value, confirm, bufferPool, OutboundPriority.RESPONSE);
+    }
+
+    /**
+     * @param service
+     * @param characteristic
+     * @param value          发送的内容，发送前不可再修改
+     * @param confirm        是否为指示
+     * @param bufferPool     value借自的缓冲池，发送后归还，不是借来的缓冲时为null
+     * @param priority       在发送队列中的优先级
+     */
+    public NotificationPacket(UUID service, UUID characteristic, byte[] value, boolean confirm, BufferPool bufferPool, OutboundPriority priority) {
+        this.service = service;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.confirm = confirm;
+        this.bufferPool = bufferPool;
+        this.priority = priority;
+    }
+
+    @Override
+    public UUID getService() {
+        return service;
+    }
+
+    @Override
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    @Override
+    public boolean isConfirm() {
+        return confirm;
+    }
+
+    @Override
+    public OutboundPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * 得到协议栈的回馈后完成，发送失败则异常完成
+     */
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    @Override
+    public boolean hasNextPackage() {
+        return value != null;
+    }
+
+    @Override
+    public byte[] nextPackage() {
+        byte[] pack = value;
+        value = null;
+        return pack;
+    }
+
+    @Override
+    public void onPackageSent(byte[] pack) {
+        releasePackage(pack);
+        future.complete(null);
+    }
+
+    @Override
+    public void releasePackage(byte[] pack) {
+        if (bufferPool != null) {
+            bufferPool.release(pack);
+        }
+    }
+
+    @Override
+    public void onError(Exception e) {
+        if (value != null) {
+            releasePackage(value);
+            value = null;
+        }
+        future.completeExceptionally(e);
+    }
+
+    @Override
+    public String toString() {
+        return (confirm ? "indication" : "notification") + " of " + characteristic;
+    }
+}
@@ -0,0 +1,57 @@
+package com.bleex.helpers;
+
+import com.bleex.consts.OutboundPriority;
+
+import java.util.UUID;
+
+/**
+ * 发送队列中的一次操作，可以是单个通知、指示或者长数据，由{@link PackageSender}逐个拉取分包发出
+ *
+ * @author Agua.L
+ */
+public interface OutboundOperation {
+    UUID getService();
+
+    UUID getCharacteristic();
+
+    /**
+     * 是否需要中心设备确认，即指示
+     */
+    boolean isConfirm();
+
+    /**
+     * 在发送队列中的优先级，加入队列后不可再修改
+     */
+    OutboundPriority getPriority();
+
+    /**
+     * 是否还有未拆出的分包
+     */
+    boolean hasNextPackage();
+
+    /**
+     * 拆出下一个分包
+     */
+    byte[] nextPackage();
+
+    /**
+     * 一个分包得到了发送回馈
+     *
+     * @param pack
+     */
+    void onPackageSent(byte[] pack);
+
+    /**
+     * 分包未能发出，归还其缓冲
+     *
+     * @param pack
+     */
+    void releasePackage(byte[] pack);
+
+    /**
+     * 发送失败
+     *
+     * @param e
+     */
+    void onError(Exception e);
+}
@@ -0,0 +1,103 @@
+package com.bleex.helpers;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 所有中心设备的发送调度器。
+ * 有待发分包的设备按轮询排队，每轮每个设备只发出一个分包，单个设备的长数据不会阻塞其他设备的通知。
+ * 调度在单独的发送线程中进行，调用方(包括binder线程)只是把设备放入队列后立即返回，
+ * 流式数据的读取与协议栈的调用都不会阻塞调用方，所有通知也都是串行发出的。
+ *
+ * @author Agua.L
+ */
+public class OutboundScheduler {
+    private final ArrayDeque<PackageSender> ready = new ArrayDeque<>();
+    private boolean draining = false;
+    private boolean stopped = false;
+    private ExecutorService executor;
+
+    /**
+     * 设备有了新的待发分包或者发送窗口有了空位
+     *
+     * @param sender
+     */
+    public void schedule(PackageSender sender) {
+        synchronized (this) {
+            if (sender.scheduled) {
+                //调度中的设备在本轮结束后重新检查
+                sender.rescan = true;
+            } else {
+                sender.scheduled = true;
+                ready.add(sender);
+            }
+            if (draining || stopped) {
+                return;
+            }
+            draining = true;
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "BleEx-Sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining = false;
+            }
+        }
+    }
+
+    /**
+     * 停止发送线程，之后排队的设备不会再被调度
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            ready.clear();
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    /**
+     * 等待调度的设备个数
+     */
+    public synchronized int getReadyCount() {
+        return ready.size();
+    }
+
+    private void drain() {
+        while (true) {
+            PackageSender sender;
+            synchronized (this) {
+                sender = ready.poll();
+                if (sender == null) {
+                    draining = false;
+                    return;
+                }
+                sender.rescan = false;
+            }
+            boolean more = false;
+            try {
+                more = sender.sendNext();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (more || sender.rescan) {
+                    sender.rescan = false;
+                    ready.add(sender);
+                } else {
+                    sender.scheduled = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.bleex.helpers;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import com.bleex.BleLogger;
+import com.bleex.BleServicesBase;
+import com.bleex.consts.OutboundPriority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 单个中心设备的发送队列，通知、指示与长数据按{@link OutboundPriority}分别排队。
+ * 不同优先级按权重交替发出分包，同一优先级中的多个长数据逐包轮流发出，因此应答不会被正在发送的长数据阻塞。
+ * 同时在途的分包数量不会超过发送窗口，每收到一次onNotificationSent才会放行下一个分包，
+ * 实际的发送由{@link OutboundScheduler}在发送线程中对所有设备轮询进行。
+ *
+ * @author Agua.L
+ */
+@SuppressLint("MissingPermission")
+public class PackageSender {
+    private static final String TAG = "PackageSender";
+    private static final OutboundPriority[] PRIORITIES = OutboundPriority.values();
+    /**
+     * 默认的权重，依次为CONTROL、RESPONSE与BULK
+     */
+    public static final int[] DEFAULT_WEIGHTS = new int[]{8, 4, 1};
+
+    /**
+     * 排队中的操作
+     */
+    private static class Queued {
+        final OutboundOperation operation;
+        final long enqueueTime;
+        boolean started = false;
+
+        Queued(OutboundOperation operation, long enqueueTime) {
+            this.operation = operation;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    /**
+     * 在途的分包
+     */
+    private static class InFlight {
+        final OutboundOperation operation;
+        final byte[] pack;
+        //所属的操作已经失败，回馈到达时只归还缓冲
+        boolean orphaned = false;
+
+        InFlight(OutboundOperation operation, byte[] pack) {
+            this.operation = operation;
+            this.pack = pack;
+        }
+    }
+
+    private final BleServicesBase<?> services;
+    private final BluetoothDevice device;
+    private final OutboundScheduler scheduler;
+    private int window;
+    //每个优先级一个队列，下标为OutboundPriority.ordinal()
+    private final ArrayDeque<Queued>[] queues;
+    private final int[] weights = DEFAULT_WEIGHTS.clone();
+    //本轮各优先级剩余可发的分包数，都用完后按权重重新分配
+    private final int[] credits = DEFAULT_WEIGHTS.clone();
+    private final ArrayDeque<InFlight> inFlights = new ArrayDeque<>();
+    //发送被协议栈拒绝后暂存的分包，等待下一次回馈后重发
+    private InFlight rejected = null;
+    //由调度器持有锁后读写
+    boolean scheduled = false;
+    boolean rescan = false;
+
+    private long lastWaitTime = 0;
+    private long maxWaitTime = 0;
+    private long totalWaitTime = 0;
+    private long waitCount = 0;
+    private final long[] sentCounts = new long[PRIORITIES.length];
+
+    @SuppressWarnings("unchecked")
+    public PackageSender(BleServicesBase<?> services, BluetoothDevice device, OutboundScheduler scheduler, int window) {
+        this.services = services;
+        this.device = device;
+        this.scheduler = scheduler;
+        this.window = Math.max(1, window);
+        this.queues = (ArrayDeque<Queued>[]) new ArrayDeque<?>[PRIORITIES.length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 设置某个优先级的权重，即每轮最多可以发出的分包数
+     *
+     * @param priority
+     * @param weight   最小为1，不会完全饿死低优先级的操作
+     */
+    public synchronized void setWeight(OutboundPriority priority, int weight) {
+        weights[priority.ordinal()] = Math.max(1, weight);
+        credits[priority.ordinal()] = Math.min(credits[priority.ordinal()], weights[priority.ordinal()]);
+    }
+
+    /**
+     * 某个优先级的权重
+     */
+    public synchronized int getWeight(OutboundPriority priority) {
+        return weights[priority.ordinal()];
+    }
+
+    /**
+     * 设置发送窗口，即同时在途的最大分包数
+     *
+     * @param window
+     */
+    public void setWindow(int window) {
+        synchronized (this) {
+            this.window = Math.max(1, window);
+        }
+        scheduler.schedule(this);
+    }
+
+    /**
+     * 在途的分包数
+     */
+    public synchronized int getInFlightCount() {
+        return inFlights.size();
+    }
+
+    /**
+     * 排队中的操作个数（包含正在发送的）
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (ArrayDeque<Queued> queue : queues) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * 某个优先级排队中的操作个数（包含正在发送的）
+     */
+    public synchronized int getPendingCount(OutboundPriority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    /**
+     * 某个优先级已经发出的分包数
+     */
+    public synchronized long getSentCount(OutboundPriority priority) {
+        return sentCounts[priority.ordinal()];
+    }
+
+    /**
+     * 最近一次操作从排队到发出首包的等待时间，单位毫秒
+     */
+    public synchronized long getLastWaitTime() {
+        return lastWaitTime / 1000000;
+    }
+
+    /**
+     * 操作从排队到发出首包的最长等待时间，单位毫秒
+     */
+    public synchronized long getMaxWaitTime() {
+        return maxWaitTime / 1000000;
+    }
+
+    /**
+     * 操作从排队到发出首包的平均等待时间，单位毫秒
+     */
+    public synchronized long getAverageWaitTime() {
+        return waitCount == 0 ? 0 : totalWaitTime / waitCount / 1000000;
+    }
+
+    /**
+     * 添加一个操作到发送队列，操作已在队列中时(如补发分包)只重新调度
+     *
+     * @param operation
+     */
+    public void send(OutboundOperation operation) {
+        synchronized (this) {
+            if (!isQueued(operation)) {
+                queues[operation.getPriority().ordinal()].add(new Queued(operation, System.nanoTime()));
+            }
+        }
+        scheduler.schedule(this);
+    }
+
+    private boolean isQueued(OutboundOperation operation) {
+        for (Queued queued : queues[operation.getPriority().ordinal()]) {
+            if (queued.operation == operation) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEmpty() {
+        for (ArrayDeque<Queued> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //按权重选出本次发送的队列，高优先级在前，所有非空队列的额度都用完后重新分配
+    private ArrayDeque<Queued> pickQueue() {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < queues.length; i++) {
+                if (credits[i] > 0 && !queues[i].isEmpty()) {
+                    credits[i]--;
+                    return queues[i];
+                }
+            }
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+
+    /**
+     * 收到了协议栈的发送回馈
+     *
+     * @param status
+     */
+    public void onNotificationSent(int status) {
+        InFlight sent;
+        List<OutboundOperation> failed = null;
+        synchronized (this) {
+            sent = inFlights.poll();
+            if (sent == null) {
+                //不是由队列发出的通知
+                return;
+            }
+            if (sent.orphaned) {
+                //每个回馈都对应自己的在途分包，操作失败后剩余的回馈仍需一一消耗，否则会错配到其他操作的分包上
+                sent.operation.releasePackage(sent.pack);
+            } else if (status != BluetoothGatt.GATT_SUCCESS) {
+                failed = new ArrayList<>();
+                failed.add(sent.operation);
+                sent.operation.releasePackage(sent.pack);
+                drop(sent.operation);
+            }
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS && !sent.orphaned) {
+            sent.operation.onPackageSent(sent.pack);
+        }
+        notifyFailed(failed, status);
+        scheduler.schedule(this);
+    }
+
+    /**
+     * 清空队列，所有未完成的操作都会失败
+     */
+    public void clear() {
+        List<OutboundOperation> failed = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Queued> queue : queues) {
+                for (Queued queued : queue) {
+                    failed.add(queued.operation);
+                }
+                queue.clear();
+            }
+            for (InFlight inFlight : inFlights) {
+                inFlight.operation.releasePackage(inFlight.pack);
+                if (!inFlight.orphaned && !failed.contains(inFlight.operation)) {
+                    failed.add(inFlight.operation);
+                }
+            }
+            if (rejected != null) {
+                rejected.operation.releasePackage(rejected.pack);
+            }
+            inFlights.clear();
+            rejected = null;
+        }
+        for (OutboundOperation operation : failed) {
+            operation.onError(new Exception("Sender of " + device.getAddress() + " cleared."));
+        }
+    }
+
+    /**
+     * 发出下一个分包，由调度器在发送线程中调用。
+     * 拆包(可能读取流)与协议栈的调用都在锁外进行，不阻塞binder线程中的回馈以及其他线程的排队
+     *
+     * @return 是否还可以继续发送
+     */
+    boolean sendNext() {
+        InFlight next;
+        Queued queued = null;
+        synchronized (this) {
+            if (inFlights.size() >= window) {
+                return false;
+            }
+            next = rejected;
+            rejected = null;
+            while (next == null && queued == null) {
+                ArrayDeque<Queued> queue = pickQueue();
+                if (queue == null) {
+                    return false;
+                }
+                Queued candidate = queue.poll();
+                if (!candidate.operation.hasNextPackage()) {
+                    //已经拆完，等待剩余的回馈即可，不阻塞后续的操作，也不占用本轮的额度
+                    credits[candidate.operation.getPriority().ordinal()]++;
+                    continue;
+                }
+                if (!candidate.started) {
+                    candidate.started = true;
+                    recordWaitTime(System.nanoTime() - candidate.enqueueTime);
+                }
+                //先排到队尾，与同一优先级的其他操作轮流发出
+                queue.add(candidate);
+                queued = candidate;
+            }
+        }
+        if (next == null) {
+            next = nextPackage(queued);
+            if (next == null) {
+                return hasMore();
+            }
+        }
+        synchronized (this) {
+            //先记为在途再调用协议栈，回馈可能在调用返回之前就到达
+            inFlights.add(next);
+        }
+        boolean success;
+        try {
+            success = services.notifyCharacteristicChanged(device, next.operation.getService(), next.operation.getCharacteristic(), next.pack, next.operation.isConfirm());
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        }
+        boolean failed = false;
+        synchronized (this) {
+            if (success) {
+                sentCounts[next.operation.getPriority().ordinal()]++;
+            } else if (inFlights.removeLastOccurrence(next)) {
+                if (!next.orphaned && !inFlights.isEmpty()) {
+                    //协议栈忙，等下一次回馈时重发
+                    rejected = next;
+                    return false;
+                }
+                next.operation.releasePackage(next.pack);
+                if (!next.orphaned) {
+                    drop(next.operation);
+                    failed = true;
+                }
+            }
+        }
+        if (failed) {
+            notifyFailed(Collections.singletonList(next.operation), BluetoothGatt.GATT_FAILURE);
+        }
+        return hasMore();
+    }
+
+    //在锁外拆出选中操作的下一个分包，操作已失败或读取失败时返回null
+    private InFlight nextPackage(Queued queued) {
+        OutboundOperation operation = queued.operation;
+        byte[] pack;
+        try {
+            pack = operation.nextPackage();
+        } catch (RuntimeException e) {
+            //流式数据读取失败
+            synchronized (this) {
+                drop(operation);
+            }
+            BleLogger.log(BleLogger.WARN, TAG, "Read " + operation + " for " + device.getAddress() + " failed: " + e.getMessage());
+            operation.onError(e);
+            return null;
+        }
+        synchronized (this) {
+            ArrayDeque<Queued> queue = queues[operation.getPriority().ordinal()];
+            if (!queue.contains(queued)) {
+                //拆包期间操作已经失败或队列被清空
+                operation.releasePackage(pack);
+                return null;
+            }
+            if (!operation.hasNextPackage()) {
+                queue.remove(queued);
+            }
+        }
+        return new InFlight(operation, pack);
+    }
+
+    private synchronized boolean hasMore() {
+        return inFlights.size() < window && !isEmpty();
+    }
+
+    private void recordWaitTime(long waitTime) {
+        lastWaitTime = waitTime;
+        maxWaitTime = Math.max(maxWaitTime, waitTime);
+        totalWaitTime += waitTime;
+        waitCount++;
+    }
+
+    //移出队列，已在途的分包仍占用发送窗口，直到各自的回馈到达
+    private void drop(OutboundOperation operation) {
+        queues[operation.getPriority().ordinal()].removeIf(queued -> queued.operation == operation);
+        for (InFlight inFlight : inFlights) {
+            if (inFlight.operation == operation) {
+                inFlight.orphaned = true;
+            }
+        }
+        if (rejected != null && rejected.operation == operation) {
+            operation.releasePackage(rejected.pack);
+            rejected = null;
+        }
+    }
+
+    private void notifyFailed(List<OutboundOperation> failed, int status) {
+        if (failed == null) {
+            return;
+        }
+        for (OutboundOperation operation : failed) {
+            String message = "Send " + operation + " to " + device.getAddress() + " failed with status: " + status + ".";
+            BleLogger.log(BleLogger.WARN, TAG, message);
+            operation.onError(new Exception(message));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.bleex.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 一个连接的准备写入队列，中心设备以ATT长写入分段写入超过MTU的值时，
+ * 每段按偏移放入该特征的缓冲中，执行写入时一次交出完整的值，取消时丢弃
+ *
+ * @author Agua.L
+ */
+public class PreparedWrites {
+    /**
+     * 一个特征准备写入的值
+     */
+    public static class Prepared {
+        private final UUID service;
+        private final UUID characteristic;
+        private byte[] value = new byte[0];
+        private int length = 0;
+
+        Prepared(UUID service, UUID characteristic) {
+            this.service = service;
+            this.characteristic = characteristic;
+        }
+
+        public UUID getService() {
+            return service;
+        }
+
+        public UUID getCharacteristic() {
+            return characteristic;
+        }
+
+        /**
+         * 组装后的值
+         */
+        public byte[] getValue() {
+            return value.length == length ? value : Arrays.copyOf(value, length);
+        }
+    }
+
+    /**
+     * 已放入队列
+     */
+    public static final int PREPARED = 0;
+    /**
+     * 偏移超出了已准备的长度，中间会留下空隙
+     */
+    public static final int INVALID_OFFSET = 1;
+    /**
+     * 超过队列的总长度上限
+     */
+    public static final int EXCEEDS_LIMIT = 2;
+
+    //key为特征的句柄，查找时不产生分配
+    private final LongMap<Prepared> prepared = new LongMap<>();
+    //按第一次准备写入的顺序排列，执行时依次交出
+    private final ArrayList<Prepared> order = new ArrayList<>();
+    private int bytes = 0;
+
+    /**
+     * 将一段数据放入队列，偏移不能超过该特征已准备的长度
+     *
+     * @param handle         特征的句柄，不可为0
+     * @param service
+     * @param characteristic
+     * @param offset
+     * @param value
+     * @param limit          队列中所有值的总长度上限
+     * @return {@link #PREPARED}，失败时队列不变
+     */
+    public synchronized int prepare(int handle, UUID service, UUID characteristic, int offset, byte[] value, int limit) {
+        Prepared target = prepared.get(handle);
+        int length = target != null ? target.length : 0;
+        int end = offset + value.length;
+        if (offset < 0 || offset > length || end < offset) {
+            return INVALID_OFFSET;
+        }
+        if (bytes + Math.max(0, end - length) > limit) {
+            return EXCEEDS_LIMIT;
+        }
+        if (target == null) {
+            target = new Prepared(service, characteristic);
+            prepared.put(handle, target);
+            order.add(target);
+        }
+        if (end > target.value.length) {
+            target.value = Arrays.copyOf(target.value, Math.min(Math.max(end, target.value.length * 2), limit));
+        }
+        System.arraycopy(value, 0, target.value, offset, value.length);
+        if (end > length) {
+            bytes += end - length;
+            target.length = end;
+        }
+        return PREPARED;
+    }
+
+    /**
+     * 执行写入，取出所有组装好的值并清空队列
+     *
+     * @return
+     */
+    public synchronized List<Prepared> drain() {
+        List<Prepared> drained = new ArrayList<>(order);
+        prepared.clear();
+        order.clear();
+        bytes = 0;
+        return drained;
+    }
+
+    /**
+     * 取消写入，丢弃队列
+     */
+    public synchronized void clear() {
+        prepared.clear();
+        order.clear();
+        bytes = 0;
+    }
+
+    /**
+     * 队列中所有值的总长度
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 队列中的特征个数
+     */
+    public synchronized int size() {
+        return prepared.size();
+    }
+}
@@ -0,0 +1,246 @@
+package com.bleex.helpers;
+
+import com.bleex.consts.CacheScope;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 特征读取结果的缓存，命中时不再调用onRead。
+ * 每个特征在添加时单独配置缓存的保留时间与共享范围，没有配置的特征不会被缓存。
+ * 按特征的句柄与连接id查找，读取时不产生分配
+ *
+ * @author Agua.L
+ */
+public class ReadCache {
+    /**
+     * 缓存的值以及得到它所用的时间
+     */
+    private static class Entry {
+        final byte[] value;
+        final long expireTime;
+        final long loadNanos;
+
+        Entry(byte[] value, long expireTime, long loadNanos) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.loadNanos = loadNanos;
+        }
+    }
+
+    /**
+     * 一个特征的缓存配置与缓存的值
+     */
+    private static class Cached {
+        final long ttl;
+        final CacheScope scope;
+        //全局范围的缓存
+        Entry global;
+        //设备范围的缓存，key为连接id
+        final LongMap<Entry> devices = new LongMap<>();
+        //每次失效时改变，失效前开始调用onRead得到的值不会再放入缓存
+        long generation;
+
+        Cached(long ttl, CacheScope scope, long generation) {
+            this.ttl = ttl;
+            this.scope = scope;
+            this.generation = generation;
+        }
+
+        int size() {
+            return (global != null ? 1 : 0) + devices.size();
+        }
+    }
+
+    //key为特征的句柄，查找时不产生分配
+    private final LongMap<Cached> cached = new LongMap<>();
+    //所有特征共用的递增代数，特征重新配置后也不会与之前的代数相同
+    private long generation = 0;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * 配置某个特征的缓存，之前缓存的值会被丢弃
+     *
+     * @param handle 特征的句柄，不可为0
+     * @param ttl    保留时间，单位毫秒，小于等于0时不缓存
+     * @param scope
+     */
+    public synchronized void configure(int handle, long ttl, CacheScope scope) {
+        if (ttl > 0) {
+            cached.put(handle, new Cached(TimeUnit.MILLISECONDS.toNanos(ttl), scope, ++generation));
+        } else {
+            cached.remove(handle);
+        }
+    }
+
+    /**
+     * 某个特征是否配置了缓存
+     *
+     * @param handle
+     * @return
+     */
+    public synchronized boolean isCached(int handle) {
+        return cached.containsKey(handle);
+    }
+
+    /**
+     * 得到某个特征缓存的当前代数，需要在{@link #get(int, int)}之前得到，未命中时与onRead的结果一起交给{@link #put(int, int, long, byte[], long)}
+     *
+     * @param handle
+     * @return 没有配置缓存时返回0
+     */
+    public synchronized long getGeneration(int handle) {
+        Cached target = cached.get(handle);
+        return target != null ? target.generation : 0;
+    }
+
+    /**
+     * 得到缓存的值
+     *
+     * @param connectionId 设备的连接id
+     * @param handle
+     * @return 没有配置缓存、没有缓存或已过期时返回null
+     */
+    public byte[] get(int connectionId, int handle) {
+        Entry entry;
+        synchronized (this) {
+            Cached target = cached.get(handle);
+            if (target == null) {
+                return null;
+            }
+            entry = target.scope == CacheScope.GLOBAL ? target.global : target.devices.get(connectionId);
+            if (entry != null && entry.expireTime - System.nanoTime() <= 0) {
+                if (target.scope == CacheScope.GLOBAL) {
+                    target.global = null;
+                } else {
+                    target.devices.remove(connectionId);
+                }
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        savedNanos.addAndGet(entry.loadNanos);
+        return entry.value;
+    }
+
+    /**
+     * 缓存onRead的结果，没有配置缓存的特征会被忽略，调用onRead期间缓存失效过时同样忽略
+     *
+     * @param connectionId 设备的连接id
+     * @param handle
+     * @param generation   调用onRead之前通过{@link #getGeneration(int)}得到的代数
+     * @param value        缓存后不可再修改
+     * @param loadNanos    调用onRead所用的时间
+     */
+    public synchronized void put(int connectionId, int handle, long generation, byte[] value, long loadNanos) {
+        Cached target = cached.get(handle);
+        if (target == null || value == null || target.generation != generation) {
+            return;
+        }
+        Entry entry = new Entry(value, System.nanoTime() + target.ttl, loadNanos);
+        if (target.scope == CacheScope.GLOBAL) {
+            target.global = entry;
+        } else {
+            target.devices.put(connectionId, entry);
+        }
+    }
+
+    /**
+     * 使某个特征所有设备的缓存失效
+     *
+     * @param handle
+     */
+    public synchronized void invalidate(int handle) {
+        Cached target = cached.get(handle);
+        if (target != null) {
+            target.global = null;
+            target.devices.clear();
+            target.generation = ++generation;
+        }
+    }
+
+    /**
+     * 使某个特征对某个设备的缓存失效，全局范围的缓存会对所有设备失效。
+     * 其他设备正在调用onRead得到的值同样不会放入缓存
+     *
+     * @param connectionId
+     * @param handle
+     */
+    public synchronized void invalidate(int connectionId, int handle) {
+        Cached target = cached.get(handle);
+        if (target == null) {
+            return;
+        }
+        if (target.scope == CacheScope.GLOBAL) {
+            target.global = null;
+        } else {
+            target.devices.remove(connectionId);
+        }
+        target.generation = ++generation;
+    }
+
+    /**
+     * 设备断开后移除其设备范围的缓存
+     *
+     * @param connectionId
+     */
+    public synchronized void removeDevice(int connectionId) {
+        cached.forEachValue(target -> target.devices.remove(connectionId));
+    }
+
+    /**
+     * 清空所有缓存，配置保留
+     */
+    public synchronized void clear() {
+        cached.forEachValue(target -> {
+            target.global = null;
+            target.devices.clear();
+            target.generation = ++generation;
+        });
+    }
+
+    /**
+     * 缓存的个数
+     */
+    public synchronized int size() {
+        int[] size = new int[1];
+        cached.forEachValue(target -> size[0] += target.size());
+        return size[0];
+    }
+
+    /**
+     * 命中的次数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 未命中的次数，只统计配置了缓存的特征
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 命中率
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * 命中缓存而节省的onRead调用时间，单位毫秒
+     */
+    public long getSavedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(savedNanos.get());
+    }
+}
@@ -0,0 +1,130 @@
+package com.bleex.helpers;
+
+import java.util.BitSet;
+
+/**
+ * 一个连接的长数据请求号，记录在途的请求号，分配时跳过仍在使用的请求号。
+ * 协议版本1中请求号为1个字节，版本2中为2个字节，由连接协商决定
+ *
+ * @author Agua.L
+ */
+public class RequestIds {
+    /**
+     * 请求号为1个字节的协议版本
+     */
+    public static final int VERSION_1 = 1;
+    /**
+     * 请求号为2个字节的协议版本
+     */
+    public static final int VERSION_2 = 2;
+    /**
+     * 支持的最高协议版本
+     */
+    public static final int MAX_VERSION = VERSION_2;
+
+    /**
+     * 协议版本对应的请求号长度
+     *
+     * @param version
+     * @return
+     */
+    public static int getLength(int version) {
+        return version >= VERSION_2 ? 2 : 1;
+    }
+
+    /**
+     * 从分包的开头读取请求号
+     *
+     * @param pack
+     * @param idLength
+     * @return
+     */
+    public static int read(byte[] pack, int idLength) {
+        return idLength == 2 ? ((pack[0] & 0xFF) << 8) | (pack[1] & 0xFF) : pack[0] & 0xFF;
+    }
+
+    /**
+     * 在分包的开头写入请求号
+     *
+     * @param pack
+     * @param idLength
+     * @param id
+     */
+    public static void write(byte[] pack, int idLength, int id) {
+        if (idLength == 2) {
+            pack[0] = (byte) (id >>> 8);
+            pack[1] = (byte) id;
+        } else {
+            pack[0] = (byte) id;
+        }
+    }
+
+    private final int idLength;
+    private final int capacity;
+    private final BitSet inFlight;
+    private int next = 0;
+
+    public RequestIds(int version) {
+        this.idLength = getLength(version);
+        this.capacity = 1 << (idLength * 8);
+        this.inFlight = new BitSet(capacity);
+    }
+
+    /**
+     * 请求号的长度
+     */
+    public int getIdLength() {
+        return idLength;
+    }
+
+    /**
+     * 分配一个不在途的请求号
+     *
+     * @return
+     * @throws Exception 所有请求号都在途
+     */
+    public synchronized int acquire() throws Exception {
+        int id = inFlight.nextClearBit(next);
+        if (id >= capacity) {
+            id = inFlight.nextClearBit(0);
+            if (id >= capacity) {
+                throw new Exception("All " + capacity + " request ids are in flight.");
+            }
+        }
+        inFlight.set(id);
+        next = (id + 1) % capacity;
+        return id;
+    }
+
+    /**
+     * 尝试占用指定的请求号
+     *
+     * @param id
+     * @return 该请求号已在途时返回false
+     */
+    public synchronized boolean tryAcquire(int id) {
+        if (id < 0 || id >= capacity || inFlight.get(id)) {
+            return false;
+        }
+        inFlight.set(id);
+        return true;
+    }
+
+    /**
+     * 请求号不再使用
+     *
+     * @param id
+     */
+    public synchronized void release(int id) {
+        if (id >= 0 && id < capacity) {
+            inFlight.clear(id);
+        }
+    }
+
+    /**
+     * 在途的请求号个数
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.cardinality();
+    }
+}
@@ -0,0 +1,248 @@
+package com.bleex.helpers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享的哈希时间轮，所有接收器的超时都由同一个线程跟踪。
+ * 重新计时只更新截止时间，到期检查时才会把未到期的任务挪到新的槽位，因此每次收包的开销为O(1)。
+ * 没有待处理的超时任务时不会产生任何唤醒。
+ *
+ * @author Agua.L
+ */
+public class TimeoutWheel {
+    /**
+     * 超时任务的句柄
+     */
+    public static class Timeout {
+        private final TimeoutWheel wheel;
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(TimeoutWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 重新计时，从现在开始再经过timeout毫秒才会超时
+         *
+         * @param timeout
+         */
+        public void touch(long timeout) {
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        /**
+         * 取消该超时任务
+         */
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            wheel.remove(this);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickDuration;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private long tick = 0;
+    private int pendingCount = 0;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * @param tickDuration 每一格的时长，单位毫秒
+     * @param wheelSize    槽位个数，会向上取整为2的幂
+     */
+    public TimeoutWheel(long tickDuration, int wheelSize) {
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * 添加一个超时任务，任务会在时间轮的线程中执行
+     *
+     * @param timeout 超时时间，单位毫秒
+     * @param task
+     * @return
+     */
+    public synchronized Timeout newTimeout(long timeout, Runnable task) {
+        long now = System.nanoTime();
+        if (ticker == null) {
+            //空闲期间没有推进过，直接对齐到当前格
+            tick = (now - startTime) / tickDuration;
+        }
+        Timeout handle = new Timeout(this, task, now + TimeUnit.MILLISECONDS.toNanos(timeout));
+        place(handle, tick);
+        pendingCount++;
+        if (ticker == null) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "BleEx-TimeoutWheel");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            ticker = executor.scheduleAtFixedRate(this::onTick, tickDuration, tickDuration, TimeUnit.NANOSECONDS);
+        }
+        return handle;
+    }
+
+    /**
+     * 等待超时的任务个数
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * 停止时间轮，未到期的任务不会再执行
+     */
+    public synchronized void stop() {
+        for (Bucket bucket : buckets) {
+            while (bucket.head != null) {
+                Timeout timeout = bucket.head;
+                timeout.cancelled = true;
+                bucket.remove(timeout);
+            }
+        }
+        pendingCount = 0;
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized void remove(Timeout timeout) {
+        if (timeout.bucket != null) {
+            timeout.bucket.remove(timeout);
+            pendingCount--;
+            stopTickerIfIdle();
+        }
+    }
+
+    //按照截止时间放入对应的槽位，不早于fromTick，圈数从fromTick开始计算
+    private void place(Timeout timeout, long fromTick) {
+        long ticks = Math.max(fromTick, (timeout.deadline - startTime) / tickDuration);
+        timeout.remainingRounds = (ticks - fromTick) / buckets.length;
+        buckets[(int) (ticks & mask)].add(timeout);
+    }
+
+    private void stopTickerIfIdle() {
+        if (pendingCount == 0 && ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    private void onTick() {
+        Timeout expired = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long target = (now - startTime) / tickDuration;
+            while (tick <= target) {
+                Bucket bucket = buckets[(int) (tick & mask)];
+                Timeout timeout = bucket.head;
+                Timeout moved = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds > 0) {
+                        timeout.remainingRounds--;
+                    } else if (timeout.deadline - now > 0) {
+                        //期间被重新计时过，检查完本槽位后再挪到新的槽位，避免落回本槽位被再检查一次
+                        bucket.remove(timeout);
+                        timeout.next = moved;
+                        moved = timeout;
+                    } else {
+                        bucket.remove(timeout);
+                        pendingCount--;
+                        timeout.next = expired;
+                        expired = timeout;
+                    }
+                    timeout = next;
+                }
+                while (moved != null) {
+                    Timeout next = moved.next;
+                    place(moved, tick + 1);
+                    moved = next;
+                }
+                tick++;
+            }
+            stopTickerIfIdle();
+        }
+        while (expired != null) {
+            Timeout next = expired.next;
+            expired.next = null;
+            if (!expired.cancelled) {
+                expired.cancelled = true;
+                try {
+                    expired.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            expired = next;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.bleex.helpers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 中断的可续传长数据的存储，按设备地址与传输id保存已接收的部分。
+ * 超出个数或总长度的限制时，最早中断的传输会被丢弃，超过保留时间的传输也会被丢弃。
+ *
+ * @author Agua.L
+ */
+public class TransferStore {
+    private static class Parked {
+        final BytesReceiver receiver;
+        final long size;
+        final long parkTime;
+
+        Parked(BytesReceiver receiver, long size, long parkTime) {
+            this.receiver = receiver;
+            this.size = size;
+            this.parkTime = parkTime;
+        }
+    }
+
+    //按中断的先后顺序排列
+    private final LinkedHashMap<String, Parked> parked = new LinkedHashMap<>();
+    private int maxTransfers = 16;
+    private long maxBytes = 16 * 1024 * 1024;
+    private long expireTime = TimeUnit.MINUTES.toMillis(10);
+    private long bytes = 0;
+
+    /**
+     * 设置最多保存的传输个数，默认为16
+     *
+     * @param maxTransfers
+     */
+    public void setMaxTransfers(int maxTransfers) {
+        List<BytesReceiver> evicted;
+        synchronized (this) {
+            this.maxTransfers = maxTransfers;
+            evicted = evict(System.nanoTime());
+        }
+        discard(evicted);
+    }
+
+    /**
+     * 设置保存的数据的最大总长度，包含写入临时文件的数据，默认为16MB
+     *
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        List<BytesReceiver> evicted;
+        synchronized (this) {
+            this.maxBytes = maxBytes;
+            evicted = evict(System.nanoTime());
+        }
+        discard(evicted);
+    }
+
+    /**
+     * 设置中断的传输的保留时间，单位毫秒，默认为10分钟
+     *
+     * @param expireTime
+     */
+    public synchronized void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    /**
+     * 保存的传输个数
+     */
+    public synchronized int size() {
+        return parked.size();
+    }
+
+    /**
+     * 保存的数据总长度
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 保存一个中断的传输，同一设备同一传输id之前保存的会被替换
+     *
+     * @param address
+     * @param transferId
+     * @param receiver
+     * @param size       占用的长度
+     */
+    void put(String address, long transferId, BytesReceiver receiver, long size) {
+        List<BytesReceiver> evicted;
+        synchronized (this) {
+            Parked previous = parked.remove(createKey(address, transferId));
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            parked.put(createKey(address, transferId), new Parked(receiver, size, System.nanoTime()));
+            bytes += size;
+            evicted = evict(System.nanoTime());
+            if (previous != null && previous.receiver != receiver) {
+                evicted.add(previous.receiver);
+            }
+        }
+        discard(evicted);
+    }
+
+    /**
+     * 取出一个中断的传输
+     *
+     * @param address
+     * @param transferId
+     * @return 没有保存或已经被丢弃时返回null
+     */
+    public BytesReceiver remove(String address, long transferId) {
+        List<BytesReceiver> evicted;
+        Parked removed;
+        synchronized (this) {
+            evicted = evict(System.nanoTime());
+            removed = parked.remove(createKey(address, transferId));
+            if (removed != null) {
+                bytes -= removed.size;
+            }
+        }
+        discard(evicted);
+        return removed != null ? removed.receiver : null;
+    }
+
+    /**
+     * 中断的传输已经接收的长度
+     *
+     * @param address
+     * @param transferId
+     * @return 没有保存时返回0
+     */
+    public int getOffset(String address, long transferId) {
+        BytesReceiver receiver;
+        synchronized (this) {
+            Parked found = parked.get(createKey(address, transferId));
+            if (found == null || System.nanoTime() - found.parkTime >= TimeUnit.MILLISECONDS.toNanos(expireTime)) {
+                return 0;
+            }
+            receiver = found.receiver;
+        }
+        return receiver.getOffset();
+    }
+
+    /**
+     * 丢弃所有保存的传输
+     */
+    public void clear() {
+        List<BytesReceiver> cleared = new ArrayList<>();
+        synchronized (this) {
+            for (Parked item : parked.values()) {
+                cleared.add(item.receiver);
+            }
+            parked.clear();
+            bytes = 0;
+        }
+        discard(cleared);
+    }
+
+    private static String createKey(String address, long transferId) {
+        return address + "/" + Long.toHexString(transferId);
+    }
+
+    //丢弃过期以及超出限制的传输，从最早中断的开始
+    private List<BytesReceiver> evict(long now) {
+        List<BytesReceiver> evicted = new ArrayList<>();
+        long expireNanos = TimeUnit.MILLISECONDS.toNanos(expireTime);
+        Iterator<Parked> iterator = parked.values().iterator();
+        while (iterator.hasNext()) {
+            Parked item = iterator.next();
+            if (now - item.parkTime < expireNanos && parked.size() <= maxTransfers && bytes <= maxBytes) {
+                break;
+            }
+            iterator.remove();
+            bytes -= item.size;
+            evicted.add(item.receiver);
+        }
+        return evicted;
+    }
+
+    //在锁外释放，避免与接收器互相等待
+    private static void discard(List<BytesReceiver> receivers) {
+        for (BytesReceiver receiver : receivers) {
+            receiver.clear();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.bleex.transport;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+/**
+ * 基于系统蓝牙的GATT传输层
+ *
+ * @author Agua.L
+ */
+@SuppressLint("MissingPermission")
+public class AndroidGattTransport implements GattTransport {
+    private final Context context;
+    private final BluetoothManager bluetoothManager;
+    private final BluetoothAdapter bluetoothAdapter;
+
+    public AndroidGattTransport(Context context) {
+        this.context = context;
+        this.bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return bluetoothAdapter.isEnabled();
+    }
+
+    @Override
+    public GattServer openServer(BluetoothGattServerCallback callback) {
+        return new AndroidGattServer(bluetoothManager.openGattServer(context, callback));
+    }
+
+    @SuppressLint("MissingPermission")
+    static class AndroidGattServer implements GattServer {
+        private final BluetoothGattServer server;
+
+        AndroidGattServer(BluetoothGattServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public boolean addService(BluetoothGattService service) {
+            return server.addService(service);
+        }
+
+        @Override
+        public boolean removeService(BluetoothGattService service) {
+            return server.removeService(service);
+        }
+
+        @Override
+        public boolean connect(BluetoothDevice device, boolean autoConnect) {
+            return server.connect(device, autoConnect);
+        }
+
+        @Override
+        public void cancelConnection(BluetoothDevice device) {
+            server.cancelConnection(device);
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+            return server.notifyCharacteristicChanged(device, characteristic, confirm);
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+            return server.sendResponse(device, requestId, status, offset, value);
+        }
+
+        @Override
+        public void close() {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.bleex.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * GATT服务端，对应{@link android.bluetooth.BluetoothGattServer}中BleEx用到的部分
+ *
+ * @author Agua.L
+ */
+public interface GattServer {
+    boolean addService(BluetoothGattService service);
+
+    boolean removeService(BluetoothGattService service);
+
+    boolean connect(BluetoothDevice device, boolean autoConnect);
+
+    void cancelConnection(BluetoothDevice device);
+
+    /**
+     * 发送通知或指示，发送结果通过onNotificationSent回馈
+     *
+     * @param device
+     * @param characteristic
+     * @param confirm
+     * @return 协议栈是否接受了该通知
+     */
+    boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm);
+
+    boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value);
+
+    void close();
+}
@@ -0,0 +1,25 @@
+package com.bleex.transport;
+
+import android.bluetooth.BluetoothGattServerCallback;
+
+/**
+ * GATT传输层，BleServicesBase通过它打开GATT服务端，默认实现为{@link AndroidGattTransport}
+ *
+ * @author Agua.L
+ */
+public interface GattTransport {
+    /**
+     * 蓝牙是否开启
+     *
+     * @return
+     */
+    boolean isEnabled();
+
+    /**
+     * 打开一个GATT服务端
+     *
+     * @param callback
+     * @return
+     */
+    GattServer openServer(BluetoothGattServerCallback callback);
+}
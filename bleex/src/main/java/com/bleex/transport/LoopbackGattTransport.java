@@ -0,0 +1,378 @@
+package com.bleex.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 内存中的回环传输层，可以模拟中心设备，用于在JVM中驱动完整的请求与长数据流程。
+ * 所有服务端回调都在同一个模拟的binder线程中执行，可以配置MTU、每个包的延迟以及丢包率。
+ *
+ * @author Agua.L
+ */
+public class LoopbackGattTransport implements GattTransport {
+    /**
+     * 模拟的中心设备收到通知的回调
+     */
+    public static abstract class NotificationCallback {
+        public void onNotification(UUID service, UUID characteristic, byte[] value) {
+        }
+    }
+
+    private final List<LoopbackServer> servers = new CopyOnWriteArrayList<>();
+    private final Map<String, LoopbackCentral> centrals = new ConcurrentHashMap<>();
+    private final AtomicInteger requestId = new AtomicInteger(0);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BleEx-Loopback");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Random random = new Random();
+    private volatile boolean enabled = true;
+    private volatile int mtu = 23;
+    private volatile long delay = 0;
+    private volatile double dropRate = 0;
+    private volatile Predicate<byte[]> dropFilter = null;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * 模拟中心设备连接后协商的MTU
+     *
+     * @param mtu
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * 每个包的传输延迟，单位毫秒
+     *
+     * @param delay
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * 丢包率，0到1之间
+     *
+     * @param dropRate
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * 按内容丢弃通知、指示或写入，用于构造确定的丢包，与丢包率同时生效
+     *
+     * @param dropFilter 为null时不按内容丢弃
+     */
+    public void setDropFilter(Predicate<byte[]> dropFilter) {
+        this.dropFilter = dropFilter;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public GattServer openServer(BluetoothGattServerCallback callback) {
+        LoopbackServer server = new LoopbackServer(callback);
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * 创建一个模拟的中心设备
+     *
+     * @param device
+     * @return
+     */
+    public LoopbackCentral createCentral(BluetoothDevice device) {
+        LoopbackCentral central = new LoopbackCentral(device);
+        centrals.put(device.getAddress(), central);
+        return central;
+    }
+
+    /**
+     * 关闭模拟的binder线程
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void post(Runnable task) {
+        executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean drop(byte[] value) {
+        Predicate<byte[]> filter = dropFilter;
+        if (filter != null && filter.test(value)) {
+            return true;
+        }
+        return dropRate > 0 && random.nextDouble() < dropRate;
+    }
+
+    private LoopbackServer findServer(UUID service) {
+        for (LoopbackServer server : servers) {
+            if (server.services.containsKey(service)) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 回环的GATT服务端
+     */
+    class LoopbackServer implements GattServer {
+        private final BluetoothGattServerCallback callback;
+        private final Map<UUID, BluetoothGattService> services = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+
+        LoopbackServer(BluetoothGattServerCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean addService(BluetoothGattService service) {
+            services.put(service.getUuid(), service);
+            post(() -> callback.onServiceAdded(BluetoothGatt.GATT_SUCCESS, service));
+            return true;
+        }
+
+        @Override
+        public boolean removeService(BluetoothGattService service) {
+            return services.remove(service.getUuid()) != null;
+        }
+
+        @Override
+        public boolean connect(BluetoothDevice device, boolean autoConnect) {
+            return centrals.containsKey(device.getAddress());
+        }
+
+        @Override
+        public void cancelConnection(BluetoothDevice device) {
+            LoopbackCentral central = centrals.get(device.getAddress());
+            if (central != null && central.connected) {
+                central.disconnect();
+            }
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+            LoopbackCentral central = centrals.get(device.getAddress());
+            if (closed || central == null || !central.connected) {
+                return false;
+            }
+            byte[] value = characteristic.getValue().clone();
+            UUID service = characteristic.getService().getUuid();
+            UUID uuid = characteristic.getUuid();
+            post(() -> {
+                int status = BluetoothGatt.GATT_SUCCESS;
+                if (drop(value)) {
+                    //指示在丢包时可以得到失败的确认，通知则无从得知
+                    if (confirm) {
+                        status = BluetoothGatt.GATT_FAILURE;
+                    }
+                } else {
+                    central.onNotification(service, uuid, value);
+                }
+                callback.onNotificationSent(device, status);
+            });
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+            LoopbackCentral central = centrals.get(device.getAddress());
+            if (central == null) {
+                return false;
+            }
+            CompletableFuture<byte[]> pending = central.pendingReads.remove(requestId);
+            if (pending != null) {
+                byte[] response = value == null ? new byte[0] : value.clone();
+                post(() -> pending.complete(response));
+            }
+            CompletableFuture<Integer> prepared = central.pendingPrepares.remove(requestId);
+            if (prepared != null) {
+                post(() -> prepared.complete(status));
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            servers.remove(this);
+        }
+    }
+
+    /**
+     * 模拟的中心设备
+     */
+    public class LoopbackCentral {
+        private final BluetoothDevice device;
+        private final Map<Integer, CompletableFuture<byte[]>> pendingReads = new ConcurrentHashMap<>();
+        private final Map<Integer, CompletableFuture<Integer>> pendingPrepares = new ConcurrentHashMap<>();
+        private volatile boolean connected = false;
+        private volatile NotificationCallback notificationCallback;
+
+        LoopbackCentral(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        public void setNotificationCallback(NotificationCallback callback) {
+            this.notificationCallback = callback;
+        }
+
+        /**
+         * 连接到所有已打开的服务端，并协商MTU
+         */
+        public void connect() {
+            connected = true;
+            int currentMtu = mtu;
+            for (LoopbackServer server : servers) {
+                post(() -> server.callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED));
+                post(() -> server.callback.onMtuChanged(device, currentMtu));
+            }
+        }
+
+        /**
+         * 重新协商MTU，断开连接后调用可以模拟协议栈迟到的回调
+         *
+         * @param mtu
+         */
+        public void changeMtu(int mtu) {
+            for (LoopbackServer server : servers) {
+                post(() -> server.callback.onMtuChanged(device, mtu));
+            }
+        }
+
+        /**
+         * 断开连接
+         */
+        public void disconnect() {
+            connected = false;
+            for (LoopbackServer server : servers) {
+                post(() -> server.callback.onConnectionStateChange(device, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED));
+            }
+        }
+
+        /**
+         * 向指定特征写入数据
+         *
+         * @param service
+         * @param characteristic
+         * @param value
+         * @param responseNeeded
+         * @return 是否发出，丢包时同样返回true
+         */
+        public boolean write(UUID service, UUID characteristic, byte[] value, boolean responseNeeded) {
+            LoopbackServer server = findServer(service);
+            if (!connected || server == null) {
+                return false;
+            }
+            BluetoothGattCharacteristic target = server.services.get(service).getCharacteristic(characteristic);
+            if (target == null) {
+                return false;
+            }
+            if (drop(value)) {
+                return true;
+            }
+            byte[] copy = value.clone();
+            int id = requestId.incrementAndGet();
+            post(() -> server.callback.onCharacteristicWriteRequest(device, id, target, false, responseNeeded, 0, copy));
+            return true;
+        }
+
+        /**
+         * 以ATT长写入的方式在指定特征的offset处准备写入一段数据，执行写入前不会交给上层
+         *
+         * @param service
+         * @param characteristic
+         * @param offset
+         * @param value
+         * @return 外设应答的状态
+         */
+        public CompletableFuture<Integer> prepareWrite(UUID service, UUID characteristic, int offset, byte[] value) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            LoopbackServer server = findServer(service);
+            BluetoothGattCharacteristic target = server != null ? server.services.get(service).getCharacteristic(characteristic) : null;
+            if (!connected || target == null) {
+                future.completeExceptionally(new Exception("Characteristic " + characteristic + " is not writable."));
+                return future;
+            }
+            byte[] copy = value.clone();
+            int id = requestId.incrementAndGet();
+            pendingPrepares.put(id, future);
+            post(() -> server.callback.onCharacteristicWriteRequest(device, id, target, true, true, offset, copy));
+            return future;
+        }
+
+        /**
+         * 执行或取消之前准备的写入
+         *
+         * @param execute
+         */
+        public void executeWrite(boolean execute) {
+            for (LoopbackServer server : servers) {
+                int id = requestId.incrementAndGet();
+                post(() -> server.callback.onExecuteWrite(device, id, execute));
+            }
+        }
+
+        /**
+         * 从指定特征的offset处读取数据
+         *
+         * @param service
+         * @param characteristic
+         * @param offset
+         * @return
+         */
+        public CompletableFuture<byte[]> read(UUID service, UUID characteristic, int offset) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            LoopbackServer server = findServer(service);
+            BluetoothGattCharacteristic target = server != null ? server.services.get(service).getCharacteristic(characteristic) : null;
+            if (!connected || target == null) {
+                future.completeExceptionally(new Exception("Characteristic " + characteristic + " is not readable."));
+                return future;
+            }
+            int id = requestId.incrementAndGet();
+            pendingReads.put(id, future);
+            post(() -> server.callback.onCharacteristicReadRequest(device, id, offset, target));
+            return future;
+        }
+
+        private void onNotification(UUID service, UUID characteristic, byte[] value) {
+            NotificationCallback callback = notificationCallback;
+            if (callback != null) {
+                callback.onNotification(service, characteristic, value);
+            }
+        }
+    }
+}
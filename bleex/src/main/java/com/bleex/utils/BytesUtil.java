@@ -29,19 +29,86 @@ public class BytesUtil {
      * @return
      */
     public static String bytesToString(byte[] bytes, boolean hex) {
-        StringBuffer sb = new StringBuffer();
-        if (bytes != null && bytes.length > 0) {
-            for (int i = 0; i < bytes.length; i++) {
-                String str = byteToString(bytes[i], hex);
-                sb.append(str);
-                if (i != bytes.length - 1) {
-                    sb.append(",");
-                }
+        return bytesToString(bytes, hex, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 字节数组转字符串，最多输出maxLength个字节
+     *
+     * @param bytes
+     * @param hex
+     * @param maxLength
+     * @return
+     */
+    public static String bytesToString(byte[] bytes, boolean hex, int maxLength) {
+        if (bytes == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder();
+        int length = Math.min(bytes.length, maxLength);
+        for (int i = 0; i < length; i++) {
+            sb.append(byteToString(bytes[i], hex));
+            if (i != length - 1) {
+                sb.append(",");
             }
         }
+        if (length < bytes.length) {
+            sb.append(",...");
+        }
         return "[" + sb.toString() + "] length:" + bytes.length;
     }
 
+    /**
+     * 按大端序从指定位置读取一个int
+     *
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 按大端序在指定位置写入一个int
+     *
+     * @param bytes
+     * @param offset
+     * @param value
+     */
+    public static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 按大端序从指定位置读取一个long
+     *
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 按大端序在指定位置写入一个long
+     *
+     * @param bytes
+     * @param offset
+     * @param value
+     */
+    public static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
     public static boolean equals(byte[] a, byte[] b) {
         return bytesToString(a,true).equals(bytesToString(b,true));
     }
@@ -0,0 +1,133 @@
+package com.bleex.utils;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 长数据压缩工具。
+ * 压缩后的格式为：原始长度(4字节，大端) + 不带zlib头的deflate数据
+ *
+ * @author Agua.L
+ */
+public class DeflateUtil {
+    /**
+     * deflate理论上的最大压缩比约为1032:1，声明的原始长度超出该比例的数据一定是伪造的
+     */
+    public static final int MAX_EXPANSION_RATIO = 1032;
+
+    /**
+     * 以最快的级别压缩，压缩后没有变小时返回null
+     *
+     * @param data
+     * @return
+     */
+    public static byte[] deflate(byte[] data) {
+        if (data.length <= 8) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            //输出超过原始长度时已经没有压缩的意义
+            byte[] output = new byte[data.length];
+            BytesUtil.writeInt(output, 0, data.length);
+            int length = 4;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(output, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 压缩数据中记录的原始长度
+     *
+     * @param compressed
+     * @return
+     */
+    public static int getOriginalLength(byte[] compressed) {
+        return BytesUtil.readInt(compressed, 0);
+    }
+
+    /**
+     * 声明的原始长度是否可信，在按原始长度分配内存前检查，避免解压缩炸弹
+     *
+     * @param originalLength   压缩数据中记录的原始长度
+     * @param compressedLength 压缩数据的长度，包含记录原始长度的4个字节
+     * @param maxLength        允许的最大原始长度
+     * @param maxRatio         允许的最大压缩比
+     * @return
+     */
+    public static boolean isValidOriginalLength(int originalLength, int compressedLength, int maxLength, int maxRatio) {
+        return originalLength >= 0 && originalLength <= maxLength && originalLength <= (long) Math.max(0, compressedLength - 4) * maxRatio;
+    }
+
+    /**
+     * 解压缩数据的解压器，每次调用{@link Inflater#inflate(byte[], int, int)}得到一段原始数据，使用后需要调用end
+     *
+     * @param compressed
+     * @param length     压缩数据的有效长度
+     * @return
+     */
+    public static Inflater createInflater(byte[] compressed, int length) {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed, 4, length - 4);
+        return inflater;
+    }
+
+    /**
+     * 解压缩全部数据
+     *
+     * @param compressed
+     * @return
+     * @throws DataFormatException 数据损坏或长度不符
+     */
+    public static byte[] inflate(byte[] compressed) throws DataFormatException {
+        return inflate(compressed, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 解压缩全部数据，原始长度超过上限或最大压缩比时在分配内存前失败
+     *
+     * @param compressed
+     * @param maxLength  允许的最大原始长度
+     * @return
+     * @throws DataFormatException 数据损坏、长度不符或超出限制
+     */
+    public static byte[] inflate(byte[] compressed, int maxLength) throws DataFormatException {
+        if (compressed.length < 4) {
+            throw new DataFormatException("Compressed data too short.");
+        }
+        int originalLength = getOriginalLength(compressed);
+        if (!isValidOriginalLength(originalLength, compressed.length, maxLength, MAX_EXPANSION_RATIO)) {
+            throw new DataFormatException("Invalid original length " + originalLength + " of " + compressed.length + " compressed bytes.");
+        }
+        byte[] output = new byte[originalLength];
+        Inflater inflater = createInflater(compressed, compressed.length);
+        try {
+            int length = 0;
+            while (length < output.length) {
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != output.length) {
+                throw new DataFormatException("Inflated " + length + " of " + output.length + " bytes.");
+            }
+            return output;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.bleex.consts.DataTags;
+import com.bleex.helpers.BytesWriter;
+import com.bleex.helpers.RequestIds;
+import com.bleex.utils.BytesUtil;
+import com.bleex.utils.DeflateUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长数据写入的接收、压缩、续传与异常的首包
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BytesReceiverTest extends LoopbackTestBase {
+    @Test
+    public void writeLarge_isDelivered() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(2).nextBytes(data);
+        writeLarge(WRITE_LARGE, data);
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writeLarge_isStreamedInChunks() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(5).nextBytes(data);
+        writeLarge(WRITE_STREAMING, data);
+        assertArrayEquals(data, writeStreaming.get(5, TimeUnit.SECONDS));
+        assertFalse(writeLarge.isDone());
+    }
+
+    @Test
+    public void writeLarge_isSpilledToMappedFile() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(6).nextBytes(data);
+        writeLarge(WRITE_SPILL, data);
+        ByteBuffer mapped = writeMapped.get(5, TimeUnit.SECONDS);
+        assertTrue(mapped.isReadOnly());
+        byte[] received = new byte[mapped.remaining()];
+        mapped.get(received);
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void compression_isNegotiatedByHandshake() throws Exception {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 16);
+        }
+        //未声明支持压缩的设备收到未压缩的数据
+        services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, data).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(data, readLarge(notifications, 182));
+
+        byte[] compressed = DeflateUtil.deflate(data);
+        writeLarge(WRITE_SPILL, compressed, DataTags.MS_WRITE_LARGE_DEFLATE);
+        ByteBuffer mapped = writeMapped.get(5, TimeUnit.SECONDS);
+        byte[] received = new byte[mapped.remaining()];
+        mapped.get(received);
+        assertArrayEquals(data, received);
+        //发来压缩数据不代表能解压缩
+        assertFalse(services.isCompressionSupported(central.getDevice()));
+
+        central.write(SERVICE, WRITE_LARGE, new byte[]{0, DataTags.MS_PROTOCOL_VERSION[0], DataTags.MS_PROTOCOL_VERSION[1], 1, (byte) (DataTags.CAPABILITY_DEFLATE | 0x80)}, true);
+        assertArrayEquals(new byte[]{0, DataTags.SM_PROTOCOL_VERSION[0], DataTags.SM_PROTOCOL_VERSION[1], 1, DataTags.CAPABILITY_DEFLATE}, notifications.poll(5, TimeUnit.SECONDS));
+        assertTrue(services.isCompressionSupported(central.getDevice()));
+
+        BytesWriter writer = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, data).get(5, TimeUnit.SECONDS);
+        assertTrue(writer.isCompressed());
+        assertEquals(data.length, writer.getLength());
+        assertArrayEquals(data, DeflateUtil.inflate(readLarge(notifications, 182, DataTags.SM_INDICATE_LARGE_DEFLATE)));
+        assertEquals(1, services.getCompressionStats().getCompressedCount());
+        assertEquals(1, services.getCompressionStats().getInflatedCount());
+    }
+
+    @Test
+    public void compressedWrite_rejectsForgedOriginalLength() throws Exception {
+        byte[] data = new byte[3000];
+        byte[] compressed = DeflateUtil.deflate(data);
+        //声明的原始长度约1GB，远超最大压缩比
+        BytesUtil.writeInt(compressed, 0, 1 << 30);
+        writeLarge(WRITE_LARGE, compressed, DataTags.MS_WRITE_LARGE_DEFLATE);
+        assertEquals(WRITE_LARGE, writeLargeFailures.poll(5, TimeUnit.SECONDS));
+
+        services.setMaxTransferSize(2000);
+        writeLarge(WRITE_LARGE, DeflateUtil.deflate(data), DataTags.MS_WRITE_LARGE_DEFLATE);
+        assertEquals(WRITE_LARGE, writeLargeFailures.poll(5, TimeUnit.SECONDS));
+        assertFalse(writeLarge.isDone());
+    }
+
+    @Test
+    public void writeLarge_rejectsOversizedFirstPackage() throws Exception {
+        //声明约2GB的首包，分配前即失败
+        byte[] first = new byte[13];
+        first[0] = 3;
+        first[1] = DataTags.MS_WRITE_LARGE[0];
+        first[2] = DataTags.MS_WRITE_LARGE[1];
+        BytesUtil.writeInt(first, 3, Integer.MAX_VALUE - 8);
+        BytesUtil.writeInt(first, 7, Integer.MAX_VALUE);
+        central.write(SERVICE, WRITE_SPILL, first, true);
+        assertEquals(WRITE_SPILL, writeLargeFailures.poll(5, TimeUnit.SECONDS));
+
+        //声明的长度超过2个分包所能携带的长度
+        BytesUtil.writeInt(first, 3, 10000);
+        BytesUtil.writeInt(first, 7, 2);
+        central.write(SERVICE, WRITE_LARGE, first, true);
+        assertEquals(WRITE_LARGE, writeLargeFailures.poll(5, TimeUnit.SECONDS));
+
+        services.setMaxTransferSize(1000);
+        writeLarge(WRITE_LARGE, new byte[2000]);
+        assertEquals(WRITE_LARGE, writeLargeFailures.poll(5, TimeUnit.SECONDS));
+        byte[] data = new byte[1000];
+        new Random(13).nextBytes(data);
+        writeLarge(WRITE_LARGE, data);
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writeLarge_resendsOnlyMissingPackages() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(7).nextBytes(data);
+        List<byte[]> packages = frameLarge(data, DataTags.MS_WRITE_LARGE);
+        for (int i = 0; i < packages.size(); i++) {
+            if (i != 3) {
+                central.write(SERVICE, WRITE_LARGE, packages.get(i), true);
+            }
+        }
+        byte[] request = notifications.poll(5, TimeUnit.SECONDS);
+        assertEquals(DataTags.SM_RESEND_REQUEST[0], request[1]);
+        assertEquals(DataTags.SM_RESEND_REQUEST[1], request[2]);
+        assertEquals(7, request.length);
+        assertEquals(3, BytesUtil.readInt(request, 3));
+        assertFalse(writeLarge.isDone());
+
+        central.write(SERVICE, WRITE_LARGE, packages.get(3), true);
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writeLarge_resumesAfterReconnect() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(9).nextBytes(data);
+        long transferId = 0x1234L;
+        List<byte[]> first = frameResumable(data, 0, transferId, (byte) 1);
+        for (int i = 0; i < 10; i++) {
+            central.write(SERVICE, WRITE_LARGE, first.get(i), true);
+        }
+        central.disconnect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (services.getTransferStore().size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, services.getTransferStore().size());
+        central.connect();
+
+        byte[] query = new byte[11];
+        query[0] = 2;
+        query[1] = DataTags.MS_RESUME_QUERY[0];
+        query[2] = DataTags.MS_RESUME_QUERY[1];
+        BytesUtil.writeLong(query, 3, transferId);
+        central.write(SERVICE, WRITE_LARGE, query, true);
+        byte[] answer = notifications.poll(5, TimeUnit.SECONDS);
+        assertEquals(DataTags.SM_RESUME_OFFSET[0], answer[1]);
+        assertEquals(transferId, BytesUtil.readLong(answer, 3));
+        int offset = BytesUtil.readInt(answer, 11);
+        assertEquals(182 - 23 + 9 * (182 - 5), offset);
+
+        for (byte[] pack : frameResumable(data, offset, transferId, (byte) 2)) {
+            central.write(SERVICE, WRITE_LARGE, pack, true);
+        }
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+        assertEquals(0, services.getTransferStore().size());
+    }
+
+    //可续传传输的一段：首包多出传输id与起始偏移
+    private static List<byte[]> frameResumable(byte[] data, int from, long transferId, byte requestIndex) {
+        List<byte[]> packages = new ArrayList<>();
+        int packageSize = 182;
+        int start = Math.min(from + packageSize - 23, data.length);
+        int packageNum = 1 + (data.length - start + packageSize - 6) / (packageSize - 5);
+        byte[] first = new byte[start - from + 23];
+        first[0] = requestIndex;
+        first[1] = DataTags.MS_WRITE_LARGE_RESUMABLE[0];
+        first[2] = DataTags.MS_WRITE_LARGE_RESUMABLE[1];
+        BytesUtil.writeInt(first, 3, data.length);
+        BytesUtil.writeInt(first, 7, packageNum);
+        BytesUtil.writeLong(first, 11, transferId);
+        BytesUtil.writeInt(first, 19, from);
+        System.arraycopy(data, from, first, 23, start - from);
+        packages.add(first);
+        for (int i = 1; i < packageNum; i++) {
+            int end = Math.min(start + packageSize - 5, data.length);
+            byte[] pack = new byte[end - start + 5];
+            pack[0] = requestIndex;
+            BytesUtil.writeInt(pack, 1, i);
+            System.arraycopy(data, start, pack, 5, end - start);
+            start = end;
+            packages.add(pack);
+        }
+        return packages;
+    }
+
+    @Test
+    public void protocolVersion2_usesWideRequestIds() throws Exception {
+        central.write(SERVICE, WRITE_LARGE, new byte[]{0, DataTags.MS_PROTOCOL_VERSION[0], DataTags.MS_PROTOCOL_VERSION[1], 9}, true);
+        assertArrayEquals(new byte[]{0, DataTags.SM_PROTOCOL_VERSION[0], DataTags.SM_PROTOCOL_VERSION[1], 2}, notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(RequestIds.VERSION_2, services.getProtocolVersion(central.getDevice()));
+
+        byte[] data = new byte[3000];
+        new Random(10).nextBytes(data);
+        for (byte[] pack : frameLarge(data, DataTags.MS_WRITE_LARGE, 0x1234, 2)) {
+            central.write(SERVICE, WRITE_LARGE, pack, true);
+        }
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+
+        services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, data).get(5, TimeUnit.SECONDS);
+        byte[] first = notifications.poll(5, TimeUnit.SECONDS);
+        assertEquals(DataTags.SM_INDICATE_LARGE[0], first[2]);
+        assertEquals(DataTags.SM_INDICATE_LARGE[1], first[3]);
+        assertEquals(data.length, BytesUtil.readInt(first, 4));
+    }
+
+    @Test
+    public void writeLarge_detectsRequestIdCollision() throws Exception {
+        byte[] stale = new byte[3000];
+        List<byte[]> stalePackages = frameLarge(stale, DataTags.MS_WRITE_LARGE);
+        for (int i = 0; i < 5; i++) {
+            central.write(SERVICE, WRITE_LARGE, stalePackages.get(i), true);
+        }
+        byte[] data = new byte[2000];
+        new Random(11).nextBytes(data);
+        writeLarge(WRITE_LARGE, data);
+        assertArrayEquals(data, writeLarge.get(5, TimeUnit.SECONDS));
+        assertEquals(1, services.getRequestIdCollisionCount());
+    }
+}
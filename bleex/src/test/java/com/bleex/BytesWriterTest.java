@@ -0,0 +1,100 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bleex.consts.DataTags;
+import com.bleex.helpers.BytesWriter;
+import com.bleex.utils.BytesUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长数据指示的分包、流式发送、广播与补发
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BytesWriterTest extends LoopbackTestBase {
+    @Test
+    public void indicateLarge_isReassembled() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(1).nextBytes(data);
+        services.setNotificationWindow(4);
+        BytesWriter writer = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, data).get(10, TimeUnit.SECONDS);
+        assertEquals(data.length, writer.getLength());
+
+        assertArrayEquals(data, readLarge(notifications, 182));
+    }
+
+    @Test
+    public void indicateLarge_streamsFromInputStream() throws Exception {
+        byte[] data = new byte[50000];
+        new Random(4).nextBytes(data);
+        services.setNotificationWindow(2);
+        BytesWriter writer = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, new ByteArrayInputStream(data), data.length).get(10, TimeUnit.SECONDS);
+        assertEquals(data.length, writer.getLength());
+        assertArrayEquals(data, readLarge(notifications, 182));
+        assertEquals(0, services.getBufferPool().getOutstandingCount());
+    }
+
+    @Test
+    public void indicateLarge_failsOnShortStream() throws Exception {
+        CompletableFuture<BytesWriter> future = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, new ByteArrayInputStream(new byte[1000]), 2000);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+        assertEquals(0, services.getOutboundQueueDepth(central.getDevice()));
+    }
+
+    @Test
+    public void broadcast_isFramedPerMtu() throws Exception {
+        LinkedBlockingQueue<byte[]> otherNotifications = new LinkedBlockingQueue<>();
+        connect("66:55:44:33:22:11", 247, otherNotifications);
+        byte[] data = new byte[3000];
+        new Random(3).nextBytes(data);
+        Map<TestDevice, CompletableFuture<Void>> results = services.broadcast(SERVICE, INDICATE_LARGE, data);
+        assertEquals(2, results.size());
+        for (CompletableFuture<Void> result : results.values()) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertArrayEquals(data, readLarge(notifications, 182));
+        assertArrayEquals(data, readLarge(otherNotifications, 244));
+    }
+
+    @Test
+    public void indicateLarge_resendsRequestedPackages() throws Exception {
+        byte[] data = new byte[2000];
+        new Random(8).nextBytes(data);
+        BytesWriter writer = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, data).get(5, TimeUnit.SECONDS);
+        List<byte[]> packages = new ArrayList<>();
+        byte[] pack;
+        while ((pack = notifications.poll(200, TimeUnit.MILLISECONDS)) != null) {
+            packages.add(pack);
+        }
+        byte[] request = new byte[7];
+        request[0] = packages.get(0)[0];
+        request[1] = DataTags.MS_RESEND_REQUEST[0];
+        request[2] = DataTags.MS_RESEND_REQUEST[1];
+        BytesUtil.writeInt(request, 3, 2);
+        central.write(SERVICE, INDICATE_LARGE, request, false);
+        assertArrayEquals(packages.get(2), notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, writer.getResentCount());
+    }
+}
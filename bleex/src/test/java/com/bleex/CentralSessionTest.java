@@ -0,0 +1,200 @@
+package com.bleex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import com.bleex.helpers.BytesWriter;
+import com.bleex.helpers.CentralSession;
+import com.bleex.helpers.OutboundScheduler;
+import com.bleex.helpers.RequestIds;
+import com.bleex.helpers.TimeoutWheel;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接会话的创建、设备表以及长数据的保留
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CentralSessionTest extends LoopbackTestBase {
+    private final TimeoutWheel wheel = new TimeoutWheel(10, 64);
+
+    @After
+    public void stopWheel() {
+        wheel.stop();
+    }
+
+    @Test
+    public void disconnectedDevice_doesNotRecreateSession() throws Exception {
+        BluetoothDevice device = central.getDevice();
+        central.disconnect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (services.getDevice(device) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(null, services.getDevice(device));
+
+        //迟到的MTU回调不会再创建会话
+        central.changeMtu(247);
+        Thread.sleep(100);
+        assertEquals(CentralSession.DEFAULT_MTU, services.getMtu(device));
+        services.setCompressionSupported(device, true);
+        assertFalse(services.isCompressionSupported(device));
+        assertEquals(RequestIds.VERSION_1, services.getProtocolVersion(device));
+        try {
+            services.sendNotification(device, SERVICE, REQUEST, new byte[]{1}, false).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("not connected"));
+        }
+        try {
+            services.indicateLarge(device, SERVICE, INDICATE_LARGE, new byte[1000]).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("not connected"));
+        }
+        assertFalse(services.isCompressionSupported(device));
+    }
+
+    @Test
+    public void deviceSnapshot_matchesConcurrentAddAndRemove() throws Exception {
+        int threads = 8;
+        int rounds = 300;
+        BluetoothDevice[] devices = new BluetoothDevice[threads];
+        for (int t = 0; t < threads; t++) {
+            devices[t] = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(String.format("AA:BB:CC:DD:EE:%02X", t));
+        }
+        //每一轮所有线程同时增减设备，结束后快照需要与设备表一致
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        CyclicBarrier end = new CyclicBarrier(threads + 1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        start.await();
+                        if ((round + index) % 2 == 0) {
+                            services.doAddDevice(devices[index]);
+                        } else {
+                            services.doRemoveDevice(devices[index]);
+                        }
+                        end.await();
+                    }
+                } catch (Exception e) {
+                    //主线程断言失败时退出
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (int round = 0; round < rounds; round++) {
+                start.await(10, TimeUnit.SECONDS);
+                end.await(10, TimeUnit.SECONDS);
+                List<String> expected = new ArrayList<>();
+                expected.add(central.getDevice().getAddress());
+                for (int t = 0; t < threads; t++) {
+                    if ((round + t) % 2 == 0) {
+                        expected.add(devices[t].getAddress());
+                    }
+                }
+                List<String> actual = new ArrayList<>();
+                for (TestDevice device : services.getDevices()) {
+                    actual.add(device.getDevice().getAddress());
+                }
+                Collections.sort(expected);
+                Collections.sort(actual);
+                assertEquals("round " + round, expected, actual);
+            }
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void retainedWriter_keepsRequestIdUntilEvicted() throws Exception {
+        CentralSession session = new CentralSession(100, services, central.getDevice(), new OutboundScheduler(), 1, wheel);
+        RequestIds ids = session.getWriteIds();
+        BytesWriter first = completedWriter(session, ids, 1000);
+        //发送结束后仍可补发，请求号不会分配给之后的传输
+        assertEquals(1, ids.getInFlightCount());
+        assertEquals(first, session.getWriter(first.getKey()));
+        for (int i = 0; i < CentralSession.MAX_RETAINED_WRITERS; i++) {
+            completedWriter(session, ids, 1000);
+        }
+        assertEquals(null, session.getWriter(first.getKey()));
+        assertEquals(CentralSession.MAX_RETAINED_WRITERS, ids.getInFlightCount());
+        assertTrue(ids.tryAcquire(first.getRequestId()));
+    }
+
+    @Test
+    public void retainedWriters_areBoundedByBytes() throws Exception {
+        CentralSession session = new CentralSession(100, services, central.getDevice(), new OutboundScheduler(), 1, wheel);
+        RequestIds ids = session.getWriteIds();
+        BytesWriter first = completedWriter(session, ids, CentralSession.MAX_RETAINED_BYTES / 2 + 1);
+        BytesWriter second = completedWriter(session, ids, CentralSession.MAX_RETAINED_BYTES / 2 + 1);
+        assertEquals(null, session.getWriter(first.getKey()));
+        assertEquals(second, session.getWriter(second.getKey()));
+        assertEquals(1, session.getRetainedWriterCount());
+        assertEquals(1, ids.getInFlightCount());
+    }
+
+    @Test
+    public void oversizedWriter_isNotRetained() throws Exception {
+        CentralSession session = new CentralSession(100, services, central.getDevice(), new OutboundScheduler(), 1, wheel);
+        RequestIds ids = session.getWriteIds();
+        BytesWriter small = completedWriter(session, ids, 1000);
+        BytesWriter large = completedWriter(session, ids, CentralSession.MAX_RETAINED_BYTES + 1);
+        //超长的长数据无法补发，请求号在发送结束时即归还，也不会挤出其他保留的长数据
+        assertEquals(null, session.getWriter(large.getKey()));
+        assertEquals(small, session.getWriter(small.getKey()));
+        assertEquals(1, session.getRetainedWriterCount());
+        assertEquals(1, ids.getInFlightCount());
+    }
+
+    @Test
+    public void retainedWriter_expiresWithoutFurtherWriters() throws Exception {
+        CentralSession session = new CentralSession(100, services, central.getDevice(), new OutboundScheduler(), 1, wheel);
+        session.setRetainTime(50);
+        RequestIds ids = session.getWriteIds();
+        BytesWriter writer = completedWriter(session, ids, 1000);
+        assertEquals(writer, session.getWriter(writer.getKey()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getRetainedWriterCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, session.getRetainedWriterCount());
+        assertEquals(0, ids.getInFlightCount());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    private static BytesWriter completedWriter(CentralSession session, RequestIds ids, int length) throws Exception {
+        int requestId = ids.acquire();
+        long key = BytesWriter.createKey(session.getId(), 1, requestId);
+        BytesWriter writer = new BytesWriter(requestId, ids.getIdLength(), 182, key, session.getDevice(), SERVICE, INDICATE_LARGE, null);
+        session.putWriter(writer, ids);
+        writer.writeBytes(new byte[length]);
+        while (writer.hasNextPackage()) {
+            writer.onPackageSent(writer.nextPackage());
+        }
+        assertTrue(writer.getFuture().isDone());
+        return writer;
+    }
+}
@@ -0,0 +1,86 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 长读取的快照与读缓存
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CharacteristicReadTest extends LoopbackTestBase {
+    @Test
+    public void longRead_isServedFromSnapshot() throws Exception {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        byte[] slice;
+        do {
+            slice = central.read(SERVICE, REQUEST, value.size()).get(5, TimeUnit.SECONDS);
+            value.write(slice, 0, slice.length);
+        } while (slice.length == 184);
+        byte[] expected = new byte[400];
+        Arrays.fill(expected, (byte) 1);
+        assertArrayEquals(expected, value.toByteArray());
+        assertEquals(1, readCount.get());
+
+        //特征值失效后偏移读取会重新调用onRead
+        central.read(SERVICE, REQUEST, 0).get(5, TimeUnit.SECONDS);
+        services.invalidateRead(SERVICE, REQUEST);
+        assertEquals(3, central.read(SERVICE, REQUEST, 184).get(5, TimeUnit.SECONDS)[0]);
+    }
+
+    @Test
+    public void invalidateDuringRead_dropsSnapshot() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        readGate = gate;
+        CompletableFuture<byte[]> first = central.read(SERVICE, REQUEST, 0);
+        assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+        //onRead得到值之后、保存快照之前特征值改变
+        services.invalidateRead(SERVICE, REQUEST);
+        gate.countDown();
+        assertEquals(1, first.get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(2, central.read(SERVICE, REQUEST, 184).get(5, TimeUnit.SECONDS)[0]);
+    }
+
+    @Test
+    public void read_isServedFromCacheUntilInvalidated() throws Exception {
+        assertEquals(1, central.read(SERVICE, CACHED_READ, 0).get(5, TimeUnit.SECONDS)[0]);
+        central.read(SERVICE, CACHED_READ, 184).get(5, TimeUnit.SECONDS);
+        central.read(SERVICE, CACHED_READ, 368).get(5, TimeUnit.SECONDS);
+        assertEquals(1, central.read(SERVICE, CACHED_READ, 0).get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(1, readCount.get());
+        assertEquals(1, services.getReadCache().getHitCount());
+        assertEquals(0.5, services.getReadCache().getHitRatio(), 0.001);
+
+        services.invalidate(SERVICE, CACHED_READ);
+        assertEquals(2, central.read(SERVICE, CACHED_READ, 0).get(5, TimeUnit.SECONDS)[0]);
+        //没有配置缓存的特征每次都会调用onRead
+        central.read(SERVICE, REQUEST, 0).get(5, TimeUnit.SECONDS);
+        central.read(SERVICE, REQUEST, 0).get(5, TimeUnit.SECONDS);
+        assertEquals(4, readCount.get());
+    }
+
+    @Test
+    public void invalidateDuringRead_isNotCached() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        readGate = gate;
+        CompletableFuture<byte[]> first = central.read(SERVICE, CACHED_READ, 0);
+        assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+        //onRead得到值之后、放入缓存之前特征值改变
+        services.invalidate(SERVICE, CACHED_READ);
+        gate.countDown();
+        assertEquals(1, first.get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(2, central.read(SERVICE, CACHED_READ, 0).get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(2, central.read(SERVICE, CACHED_READ, 0).get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(2, readCount.get());
+    }
+}
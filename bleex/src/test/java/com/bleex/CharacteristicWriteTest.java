@@ -0,0 +1,102 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.bleex.helpers.IngestBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 准备写入与数据流特征的写入
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CharacteristicWriteTest extends LoopbackTestBase {
+    @Test
+    public void preparedWrite_isAssembledOnExecute() throws Exception {
+        byte[] data = new byte[500];
+        new Random(12).nextBytes(data);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 0, Arrays.copyOfRange(data, 0, 180)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 180, Arrays.copyOfRange(data, 180, 360)));
+        //重写已准备的部分
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 100, Arrays.copyOfRange(data, 100, 200)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 360, Arrays.copyOfRange(data, 360, 500)));
+        central.executeWrite(true);
+        assertArrayEquals(data, writes.poll(5, TimeUnit.SECONDS));
+
+        //取消时丢弃队列
+        prepareWrite(PLAIN_WRITE, 0, new byte[100]);
+        central.executeWrite(false);
+        central.executeWrite(true);
+        //超过上限的一段被拒绝
+        services.setPreparedWriteLimit(100);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 0, new byte[60]));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, prepareWrite(PLAIN_WRITE, 60, new byte[60]));
+        central.executeWrite(true);
+        assertEquals(60, writes.poll(5, TimeUnit.SECONDS).length);
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void preparedWrite_rejectsGapsAndProtocolCharacteristics() throws Exception {
+        //偏移超出已准备的长度
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, prepareWrite(PLAIN_WRITE, 10, new byte[10]));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, prepareWrite(PLAIN_WRITE, 0, new byte[10]));
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, prepareWrite(PLAIN_WRITE, 11, new byte[10]));
+        //数据流与长数据特征不接受准备写入
+        assertEquals(BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, prepareWrite(INGEST, 0, new byte[]{1}));
+        assertEquals(BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, prepareWrite(WRITE_LARGE, 0, new byte[]{1}));
+        central.executeWrite(true);
+        assertEquals(10, writes.poll(5, TimeUnit.SECONDS).length);
+        assertNull(services.getIngestBuffer(central.getDevice(), SERVICE, INGEST));
+        assertTrue(writes.isEmpty());
+    }
+
+    private int prepareWrite(UUID characteristic, int offset, byte[] value) throws Exception {
+        return central.prepareWrite(SERVICE, characteristic, offset, value).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void ingest_isBufferedAndDeliveredInBatches() throws Exception {
+        LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        services.setIngestExecutor(tasks::add);
+        for (int i = 0; i < 10; i++) {
+            central.write(SERVICE, INGEST, new byte[]{(byte) i}, false);
+        }
+        //取出任务只安排一次，缓冲已满后丢弃新到达的数据
+        Runnable task = tasks.poll(5, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        IngestBuffer buffer = services.getIngestBuffer(central.getDevice(), SERVICE, INGEST);
+        while ((buffer == null || buffer.getReceivedCount() < 10) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            buffer = services.getIngestBuffer(central.getDevice(), SERVICE, INGEST);
+        }
+        assertTrue(tasks.isEmpty());
+        task.run();
+        List<byte[]> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertEquals(4, batch.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, batch.get(i)[0]);
+        }
+        assertEquals(6, buffer.getDroppedCount());
+        assertEquals(4, buffer.getDeliveredCount());
+
+        central.write(SERVICE, INGEST, new byte[]{10}, false);
+        tasks.poll(5, TimeUnit.SECONDS).run();
+        assertArrayEquals(new byte[]{10}, batches.poll(5, TimeUnit.SECONDS).get(0));
+        assertEquals(2, buffer.getBatchCount());
+    }
+}
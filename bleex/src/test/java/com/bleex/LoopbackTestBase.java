@@ -0,0 +1,270 @@
+package com.bleex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bleex.consts.CacheScope;
+import com.bleex.consts.DataTags;
+import com.bleex.consts.OverflowPolicy;
+import com.bleex.consts.ReceiveMode;
+import com.bleex.helpers.RequestIds;
+import com.bleex.transport.LoopbackGattTransport;
+import com.bleex.utils.BytesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 回环测试共用的服务、特征与模拟的中心设备，每个测试都从一个已连接且MTU为185的中心设备开始
+ */
+public abstract class LoopbackTestBase {
+    protected static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    protected static final UUID REQUEST = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    protected static final UUID WRITE_LARGE = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    protected static final UUID INDICATE_LARGE = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+    protected static final UUID ASYNC_REQUEST = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+    protected static final UUID WRITE_STREAMING = UUID.fromString("0000fff5-0000-1000-8000-00805f9b34fb");
+    protected static final UUID WRITE_SPILL = UUID.fromString("0000fff6-0000-1000-8000-00805f9b34fb");
+    protected static final UUID CACHED_READ = UUID.fromString("0000fff7-0000-1000-8000-00805f9b34fb");
+    protected static final UUID PLAIN_WRITE = UUID.fromString("0000fff8-0000-1000-8000-00805f9b34fb");
+    protected static final UUID INGEST = UUID.fromString("0000fff9-0000-1000-8000-00805f9b34fb");
+
+    protected LoopbackGattTransport transport;
+    protected BleServicesBase<TestDevice> services;
+    protected LoopbackGattTransport.LoopbackCentral central;
+    protected final LinkedBlockingQueue<byte[]> notifications = new LinkedBlockingQueue<>();
+    protected final CompletableFuture<byte[]> writeLarge = new CompletableFuture<>();
+    protected final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+    protected final CompletableFuture<byte[]> writeStreaming = new CompletableFuture<>();
+    protected final CompletableFuture<ByteBuffer> writeMapped = new CompletableFuture<>();
+    protected final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor();
+    protected final AtomicInteger readCount = new AtomicInteger();
+    //不为null时下一次onRead开始后通知readStarted，并等待放行
+    protected volatile CountDownLatch readGate;
+    protected final CountDownLatch readStarted = new CountDownLatch(1);
+    protected final LinkedBlockingQueue<byte[]> writes = new LinkedBlockingQueue<>();
+    protected final LinkedBlockingQueue<List<byte[]>> batches = new LinkedBlockingQueue<>();
+    protected final LinkedBlockingQueue<UUID> writeLargeFailures = new LinkedBlockingQueue<>();
+
+    protected class TestDevice extends BleCentralDeviceBase {
+        TestDevice(BluetoothDevice device, BleServicesBase services) {
+            super(device, services, null);
+        }
+
+        @Override
+        protected byte[] onRequest(UUID service, UUID characteristic, byte[] data) {
+            byte[] response = data.clone();
+            for (int i = 0; i < response.length; i++) {
+                response[i]++;
+            }
+            return response;
+        }
+
+        @Override
+        protected byte[] onRead(UUID service, UUID characteristic) {
+            byte[] value = new byte[400];
+            Arrays.fill(value, (byte) readCount.incrementAndGet());
+            CountDownLatch gate = readGate;
+            if (gate != null) {
+                readGate = null;
+                readStarted.countDown();
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return value;
+        }
+
+        @Override
+        protected void onWrite(UUID service, UUID characteristic, byte[] data) {
+            writes.add(data);
+        }
+
+        @Override
+        protected void onWriteBatch(UUID service, UUID characteristic, List<byte[]> values, long[] timestamps) {
+            assertEquals(values.size(), timestamps.length);
+            batches.add(values);
+        }
+
+        @Override
+        protected CompletableFuture<byte[]> onRequestAsync(UUID service, UUID characteristic, byte[] data) {
+            if (!characteristic.equals(ASYNC_REQUEST)) {
+                return null;
+            }
+            if (data.length > 0 && data[0] == -1) {
+                throw new IllegalStateException("handler failed");
+            }
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            if (data.length > 0 && data[0] == -2) {
+                delayed.schedule(() -> future.completeExceptionally(new IllegalStateException("handler failed")), 50, TimeUnit.MILLISECONDS);
+                return future;
+            }
+            delayed.schedule(() -> future.complete(data), 200, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        @Override
+        protected void onWriteLarge(UUID service, UUID characteristic, byte[] data) {
+            writeLarge.complete(data);
+        }
+
+        @Override
+        protected void onWriteLarge(UUID service, UUID characteristic, ByteBuffer data) {
+            writeMapped.complete(data);
+        }
+
+        @Override
+        protected void onWriteLargeFailed(UUID service, UUID characteristic) {
+            writeLargeFailures.add(characteristic);
+        }
+
+        @Override
+        protected void onWriteLargeChunk(UUID service, UUID characteristic, int offset, ByteBuffer chunk, int length) {
+            assertEquals(chunks.size(), offset);
+            int end = offset + chunk.remaining();
+            while (chunk.hasRemaining()) {
+                chunks.write(chunk.get());
+            }
+            if (end == length) {
+                writeStreaming.complete(chunks.toByteArray());
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BleLogger.enable = false;
+        transport = new LoopbackGattTransport();
+        services = new BleServicesBase<TestDevice>(null, transport) {
+            @Override
+            protected BleCentralDeviceBase createCentralDevice(BluetoothDevice device) {
+                return new TestDevice(device, this);
+            }
+        };
+        services.addService(SERVICE);
+        services.addRequestCharacteristic(SERVICE, REQUEST);
+        services.addWriteLargeCharacteristic(SERVICE, WRITE_LARGE);
+        services.addIndicateLargeCharacteristic(SERVICE, INDICATE_LARGE);
+        services.addRequestCharacteristic(SERVICE, ASYNC_REQUEST);
+        services.addWriteLargeCharacteristic(SERVICE, WRITE_STREAMING);
+        services.addWriteLargeCharacteristic(SERVICE, WRITE_SPILL);
+        services.addCharacteristic(SERVICE, CACHED_READ, BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ, 60000, CacheScope.GLOBAL);
+        services.addCharacteristic(SERVICE, PLAIN_WRITE, BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        services.addIngestCharacteristic(SERVICE, INGEST, 4, OverflowPolicy.DROP_NEWEST);
+        services.setReceiveMode(SERVICE, WRITE_STREAMING, ReceiveMode.STREAMING);
+        services.setReceiveMode(SERVICE, WRITE_SPILL, ReceiveMode.SPILL);
+        services.setSpillThreshold(1024);
+        services.launch();
+
+        central = connect("11:22:33:44:55:66", 185, notifications);
+    }
+
+    @After
+    public void tearDown() {
+        services.dispose();
+        transport.shutdown();
+        delayed.shutdownNow();
+    }
+
+    //连接一个模拟的中心设备，等待连接建立且MTU协商完成
+    protected LoopbackGattTransport.LoopbackCentral connect(String address, int mtu, LinkedBlockingQueue<byte[]> queue) throws InterruptedException {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        transport.setMtu(mtu);
+        LoopbackGattTransport.LoopbackCentral loopbackCentral = transport.createCentral(device);
+        if (queue != null) {
+            loopbackCentral.setNotificationCallback(new LoopbackGattTransport.NotificationCallback() {
+                @Override
+                public void onNotification(UUID service, UUID characteristic, byte[] value) {
+                    queue.add(value);
+                }
+            });
+        }
+        loopbackCentral.connect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((services.getDevice(device) == null || services.getMtu(device) != mtu) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return loopbackCentral;
+    }
+
+    protected static byte[] readLarge(LinkedBlockingQueue<byte[]> queue, int packageSize) throws Exception {
+        return readLarge(queue, packageSize, DataTags.SM_INDICATE_LARGE);
+    }
+
+    protected static byte[] readLarge(LinkedBlockingQueue<byte[]> queue, int packageSize, byte[] tag) throws Exception {
+        byte[] first = queue.poll(5, TimeUnit.SECONDS);
+        assertEquals(tag[0], first[1]);
+        assertEquals(tag[1], first[2]);
+        int dataSize = BytesUtil.readInt(first, 3);
+        int packageNum = BytesUtil.readInt(first, 7);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(first, 11, first.length - 11);
+        for (int i = 1; i < packageNum; i++) {
+            byte[] pack = queue.poll(5, TimeUnit.SECONDS);
+            assertTrue(pack.length <= packageSize);
+            assertEquals(first[0], pack[0]);
+            assertEquals(i, BytesUtil.readInt(pack, 1));
+            output.write(pack, 5, pack.length - 5);
+        }
+        assertEquals(dataSize, output.size());
+        return output.toByteArray();
+    }
+
+    protected void writeLarge(UUID characteristic, byte[] data) {
+        writeLarge(characteristic, data, DataTags.MS_WRITE_LARGE);
+    }
+
+    protected void writeLarge(UUID characteristic, byte[] data, byte[] tag) {
+        for (byte[] pack : frameLarge(data, tag)) {
+            central.write(SERVICE, characteristic, pack, true);
+        }
+    }
+
+    protected static List<byte[]> frameLarge(byte[] data, byte[] tag) {
+        return frameLarge(data, tag, 3, 1);
+    }
+
+    protected static List<byte[]> frameLarge(byte[] data, byte[] tag, int requestId, int idLength) {
+        List<byte[]> packages = new ArrayList<>();
+        int packageSize = 182;
+        int start = Math.min(packageSize - idLength - 10, data.length);
+        int packageNum = 1 + (data.length - start + packageSize - idLength - 5) / (packageSize - idLength - 4);
+        byte[] first = new byte[start + idLength + 10];
+        RequestIds.write(first, idLength, requestId);
+        first[idLength] = tag[0];
+        first[idLength + 1] = tag[1];
+        BytesUtil.writeInt(first, idLength + 2, data.length);
+        BytesUtil.writeInt(first, idLength + 6, packageNum);
+        System.arraycopy(data, 0, first, idLength + 10, start);
+        packages.add(first);
+        for (int i = 1; i < packageNum; i++) {
+            int end = Math.min(start + packageSize - idLength - 4, data.length);
+            byte[] pack = new byte[end - start + idLength + 4];
+            RequestIds.write(pack, idLength, requestId);
+            BytesUtil.writeInt(pack, idLength, i);
+            System.arraycopy(data, start, pack, idLength + 4, end - start);
+            start = end;
+            packages.add(pack);
+        }
+        return packages;
+    }
+}
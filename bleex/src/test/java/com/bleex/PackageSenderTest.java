@@ -0,0 +1,115 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bleex.consts.OutboundPriority;
+import com.bleex.helpers.BytesWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 发送队列的调度、优先级与发送回馈
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackageSenderTest extends LoopbackTestBase {
+    @Test
+    public void notification_isNotStarvedByLargeTransfer() throws Exception {
+        BluetoothDevice other = connect("66:55:44:33:22:11", 185, null).getDevice();
+        transport.setDelay(2);
+        CompletableFuture<BytesWriter> large = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, new byte[20000]);
+        services.sendNotification(other, SERVICE, REQUEST, new byte[]{1, 2, 3}, false).get(5, TimeUnit.SECONDS);
+        assertFalse(large.isDone());
+        assertEquals(1, services.getOutboundQueueDepth(central.getDevice()));
+        large.get(10, TimeUnit.SECONDS);
+        assertEquals(0, services.getOutboundQueueDepth(central.getDevice()));
+    }
+
+    @Test(timeout = 20000)
+    public void blockingStream_doesNotBlockCallers() throws Exception {
+        BluetoothDevice other = connect("66:55:44:33:22:11", 185, null).getDevice();
+        CountDownLatch readable = new CountDownLatch(1);
+        InputStream stream = new ByteArrayInputStream(new byte[1000]) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                try {
+                    readable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        //流的读取在发送线程中进行，调用方立即返回
+        CompletableFuture<BytesWriter> large = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, stream, 1000);
+        assertFalse(large.isDone());
+        readable.countDown();
+        large.get(10, TimeUnit.SECONDS);
+        services.sendNotification(other, SERVICE, REQUEST, new byte[]{1}, false).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void response_overtakesBulkTransfer() throws Exception {
+        transport.setDelay(2);
+        CompletableFuture<BytesWriter> large = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, new byte[20000]);
+        central.write(SERVICE, REQUEST, new byte[]{7, 1, 2, 3}, true);
+        byte[] pack;
+        while ((pack = notifications.poll(5, TimeUnit.SECONDS)) != null && !Arrays.equals(new byte[]{7, 2, 3, 4}, pack)) {
+            //长数据的分包
+        }
+        assertArrayEquals(new byte[]{7, 2, 3, 4}, pack);
+        assertFalse(large.isDone());
+        assertTrue(services.getOutboundSentCount(central.getDevice(), OutboundPriority.BULK) < 50);
+        assertEquals(1, services.getOutboundSentCount(central.getDevice(), OutboundPriority.RESPONSE));
+        large.get(10, TimeUnit.SECONDS);
+        assertTrue(services.getOutboundSentCount(central.getDevice(), OutboundPriority.BULK) > 100);
+    }
+
+    @Test
+    public void droppedIndication_doesNotShiftOtherFeedback() throws Exception {
+        services.setNotificationWindow(3);
+        transport.setDelay(20);
+        byte[] marker = new byte[]{0x5A, 0x5A};
+        AtomicBoolean largeDropped = new AtomicBoolean();
+        //丢掉长数据的首包与随后排队的指示，长数据剩余的在途分包仍会得到回馈
+        transport.setDropFilter(value -> Arrays.equals(marker, value) || (value.length > 100 && largeDropped.compareAndSet(false, true)));
+        CompletableFuture<BytesWriter> large = services.indicateLarge(central.getDevice(), SERVICE, INDICATE_LARGE, new byte[2000]);
+        CompletableFuture<Void> indication = services.sendNotification(central.getDevice(), SERVICE, REQUEST, marker, true);
+        try {
+            large.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            //首包没有得到确认
+        }
+        try {
+            indication.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            //自己的分包丢失，不能被长数据剩余的回馈当作成功
+        }
+        transport.setDropFilter(null);
+        services.sendNotification(central.getDevice(), SERVICE, REQUEST, new byte[]{1}, true).get(5, TimeUnit.SECONDS);
+        byte[] pack;
+        while ((pack = notifications.poll(5, TimeUnit.SECONDS)) != null && !Arrays.equals(new byte[]{1}, pack)) {
+            //长数据剩余的分包
+        }
+        assertArrayEquals(new byte[]{1}, pack);
+        assertEquals(0, services.getBufferPool().getOutstandingCount());
+    }
+}
@@ -0,0 +1,91 @@
+package com.bleex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.bleex.consts.DataTags;
+import com.bleex.helpers.RequestIds;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求与异步请求的应答
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RequestTest extends LoopbackTestBase {
+    @Test
+    public void request_isAnswered() throws Exception {
+        central.write(SERVICE, REQUEST, new byte[]{7, 1, 2, 3}, true);
+        byte[] response = notifications.poll(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[]{7, 2, 3, 4}, response);
+    }
+
+    @Test
+    public void asyncRequest_doesNotBlockOthers() throws Exception {
+        services.setRequestExecutor(Executors.newSingleThreadExecutor());
+        central.write(SERVICE, ASYNC_REQUEST, new byte[]{8, 9}, true);
+        central.write(SERVICE, REQUEST, new byte[]{7, 1}, true);
+        assertArrayEquals(new byte[]{7, 2}, notifications.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{8, 9}, notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedRequest_isAnsweredWithFailureTag() throws Exception {
+        negotiateVersion2();
+        byte[] failed = new byte[]{0, DataTags.SM_REQUEST_FAILED[0], DataTags.SM_REQUEST_FAILED[1]};
+        services.setRequestExecutor(Executors.newSingleThreadExecutor());
+        central.write(SERVICE, ASYNC_REQUEST, new byte[]{8, -1}, true);
+        failed[0] = 8;
+        assertArrayEquals(failed, notifications.poll(5, TimeUnit.SECONDS));
+        central.write(SERVICE, ASYNC_REQUEST, new byte[]{9, -2}, true);
+        failed[0] = 9;
+        assertArrayEquals(failed, notifications.poll(5, TimeUnit.SECONDS));
+
+        services.setRequestExecutor(command -> {
+            throw new RejectedExecutionException();
+        });
+        central.write(SERVICE, REQUEST, new byte[]{10, 1}, true);
+        failed[0] = 10;
+        assertArrayEquals(failed, notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedRequest_isNotAnsweredOnVersion1() throws Exception {
+        //协议版本1中失败应答会被当作以这两个字节开头的正常应答，因此不应答
+        services.setRequestExecutor(Executors.newSingleThreadExecutor());
+        central.write(SERVICE, ASYNC_REQUEST, new byte[]{8, -1}, true);
+        central.write(SERVICE, ASYNC_REQUEST, new byte[]{9, -2}, true);
+        assertNull(notifications.poll(500, TimeUnit.MILLISECONDS));
+        central.write(SERVICE, REQUEST, new byte[]{7, 1}, true);
+        assertArrayEquals(new byte[]{7, 2}, notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oversizedResponse_failsInsteadOfTruncating() throws Exception {
+        //MTU为185时应答最多181个字节
+        byte[] request = new byte[183];
+        request[0] = 11;
+        central.write(SERVICE, REQUEST, request, true);
+        assertNull(notifications.poll(500, TimeUnit.MILLISECONDS));
+
+        negotiateVersion2();
+        request[0] = 12;
+        central.write(SERVICE, REQUEST, request, true);
+        assertArrayEquals(new byte[]{12, DataTags.SM_REQUEST_FAILED[0], DataTags.SM_REQUEST_FAILED[1]}, notifications.poll(5, TimeUnit.SECONDS));
+        central.write(SERVICE, REQUEST, Arrays.copyOf(request, 182), true);
+        assertEquals(182, notifications.poll(5, TimeUnit.SECONDS).length);
+    }
+
+    private void negotiateVersion2() throws Exception {
+        central.write(SERVICE, WRITE_LARGE, new byte[]{0, DataTags.MS_PROTOCOL_VERSION[0], DataTags.MS_PROTOCOL_VERSION[1], RequestIds.VERSION_2}, true);
+        assertArrayEquals(new byte[]{0, DataTags.SM_PROTOCOL_VERSION[0], DataTags.SM_PROTOCOL_VERSION[1], RequestIds.VERSION_2}, notifications.poll(5, TimeUnit.SECONDS));
+    }
+}
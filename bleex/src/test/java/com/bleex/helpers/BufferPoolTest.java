@@ -0,0 +1,44 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * 缓冲池的按长度复用与保留上限
+ */
+public class BufferPoolTest {
+    @Test
+    public void release_reusesSameSizeOnly() {
+        BufferPool pool = new BufferPool(4, 4096);
+        byte[] buffer = pool.acquire(182);
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(244));
+        assertSame(buffer, pool.acquire(182));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(2, pool.getOutstandingCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void limits_dropExcessBuffers() {
+        BufferPool pool = new BufferPool(2, 500);
+        byte[][] buffers = new byte[4][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(200);
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        //每级最多2个，总量最多500字节
+        assertEquals(400, pool.getPooledBytes());
+        pool.release(pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1));
+        assertEquals(400, pool.getPooledBytes());
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,84 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bleex.consts.OverflowPolicy;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+/**
+ * 环形缓冲的取出任务安排、批次顺序与溢出丢弃
+ */
+public class IngestBufferTest {
+    private static final UUID SERVICE = UUID.fromString("0000ff00-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+
+    private static IngestBuffer buffer(int capacity, OverflowPolicy policy) {
+        return new IngestBuffer(SERVICE, CHARACTERISTIC, capacity, policy);
+    }
+
+    @Test
+    public void offer_schedulesOncePerBatch() {
+        IngestBuffer buffer = buffer(4, OverflowPolicy.DROP_OLDEST);
+        assertTrue(buffer.offer(new byte[]{1}, 1));
+        assertFalse(buffer.offer(new byte[]{2}, 2));
+        IngestBuffer.Batch batch = buffer.poll();
+        assertEquals(2, batch.getValues().size());
+        assertArrayEquals(new long[]{1, 2}, batch.getTimestamps());
+        //取出任务还没结束，新到达的数据由它继续取出
+        assertFalse(buffer.offer(new byte[]{3}, 3));
+        assertEquals(1, buffer.poll().getValues().size());
+        assertNull(buffer.poll());
+        //取出任务结束后需要重新安排
+        assertTrue(buffer.offer(new byte[]{4}, 4));
+        assertEquals(2, buffer.getBatchCount());
+        assertEquals(3, buffer.getDeliveredCount());
+    }
+
+    @Test
+    public void dropOldest_keepsNewestInOrder() {
+        IngestBuffer buffer = buffer(3, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(new byte[]{(byte) i}, i);
+        }
+        IngestBuffer.Batch batch = buffer.poll();
+        assertEquals(3, batch.getValues().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 2, batch.getValues().get(i)[0]);
+            assertEquals(i + 2, batch.getTimestamps()[i]);
+        }
+        assertEquals(5, buffer.getReceivedCount());
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewest_keepsOldest() {
+        IngestBuffer buffer = buffer(3, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(new byte[]{(byte) i}, i);
+        }
+        IngestBuffer.Batch batch = buffer.poll();
+        assertEquals(3, batch.getValues().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, batch.getValues().get(i)[0]);
+        }
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void clear_countsDroppedAndEndsTask() {
+        IngestBuffer buffer = buffer(4, OverflowPolicy.DROP_OLDEST);
+        buffer.offer(new byte[]{1}, 1);
+        buffer.offer(new byte[]{2}, 2);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(2, buffer.getDroppedCount());
+        assertTrue(buffer.offer(new byte[]{3}, 3));
+    }
+}
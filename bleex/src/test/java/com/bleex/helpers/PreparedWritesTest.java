@@ -0,0 +1,69 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 准备写入的分段组装、总长度上限与执行顺序
+ */
+public class PreparedWritesTest {
+    private static final UUID SERVICE = UUID.fromString("0000ff00-0000-1000-8000-00805f9b34fb");
+    private static final UUID FIRST = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+    private static final UUID SECOND = UUID.fromString("0000ff02-0000-1000-8000-00805f9b34fb");
+    private static final int FIRST_HANDLE = 1;
+    private static final int SECOND_HANDLE = 2;
+
+    private final PreparedWrites writes = new PreparedWrites();
+
+    @Test
+    public void segments_areAssembledInOrderOfFirstPrepare() {
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(SECOND_HANDLE, SERVICE, SECOND, 0, new byte[]{9}, 512));
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 0, new byte[]{1, 2}, 512));
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 2, new byte[]{3, 4}, 512));
+        //重写已经准备的部分不增加总长度
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 1, new byte[]{5}, 512));
+        assertEquals(5, writes.getBytes());
+        assertEquals(2, writes.size());
+        List<PreparedWrites.Prepared> drained = writes.drain();
+        assertEquals(SECOND, drained.get(0).getCharacteristic());
+        assertArrayEquals(new byte[]{9}, drained.get(0).getValue());
+        assertEquals(FIRST, drained.get(1).getCharacteristic());
+        assertArrayEquals(new byte[]{1, 5, 3, 4}, drained.get(1).getValue());
+        assertEquals(0, writes.getBytes());
+        assertEquals(0, writes.size());
+    }
+
+    @Test
+    public void limit_rejectsWithoutChangingQueue() {
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 0, new byte[6], 8));
+        assertEquals(PreparedWrites.EXCEEDS_LIMIT, writes.prepare(SECOND_HANDLE, SERVICE, SECOND, 0, new byte[3], 8));
+        assertEquals(PreparedWrites.EXCEEDS_LIMIT, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 6, new byte[3], 8));
+        assertEquals(6, writes.getBytes());
+        assertEquals(1, writes.size());
+    }
+
+    @Test
+    public void offsetPastPrepared_isRejected() {
+        assertEquals(PreparedWrites.INVALID_OFFSET, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 1, new byte[1], 512));
+        assertEquals(PreparedWrites.INVALID_OFFSET, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, -1, new byte[1], 512));
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 0, new byte[4], 512));
+        //紧接已准备的末尾可以继续写入，跳过中间的字节不可以
+        assertEquals(PreparedWrites.PREPARED, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 4, new byte[4], 512));
+        assertEquals(PreparedWrites.INVALID_OFFSET, writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 9, new byte[1], 512));
+        assertEquals(8, writes.getBytes());
+    }
+
+    @Test
+    public void clear_discardsQueue() {
+        writes.prepare(FIRST_HANDLE, SERVICE, FIRST, 0, new byte[4], 512);
+        writes.clear();
+        assertEquals(0, writes.getBytes());
+        assertTrue(writes.drain().isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bleex.consts.CacheScope;
+
+import org.junit.Test;
+
+/**
+ * 读取缓存的共享范围、过期与失效
+ */
+public class ReadCacheTest {
+    //特征的句柄
+    private static final int SHARED = 1;
+    private static final int PRIVATE = 2;
+    //连接id
+    private static final int FIRST = 1;
+    private static final int SECOND = 2;
+
+    private final ReadCache cache = new ReadCache();
+
+    @Test
+    public void scope_decidesWhoSharesEntry() {
+        cache.configure(SHARED, 60000, CacheScope.GLOBAL);
+        cache.configure(PRIVATE, 60000, CacheScope.DEVICE);
+        cache.put(FIRST, SHARED, cache.getGeneration(SHARED), new byte[]{1}, 0);
+        cache.put(FIRST, PRIVATE, cache.getGeneration(PRIVATE), new byte[]{2}, 0);
+        assertArrayEquals(new byte[]{1}, cache.get(SECOND, SHARED));
+        assertNull(cache.get(SECOND, PRIVATE));
+        assertArrayEquals(new byte[]{2}, cache.get(FIRST, PRIVATE));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void unconfigured_isNeverCached() {
+        cache.put(FIRST, SHARED, cache.getGeneration(SHARED), new byte[]{1}, 0);
+        assertFalse(cache.isCached(SHARED));
+        assertNull(cache.get(FIRST, SHARED));
+        assertEquals(0, cache.size());
+        //未配置的特征不计入未命中
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void expiredEntry_isRemovedOnGet() throws Exception {
+        cache.configure(SHARED, 20, CacheScope.GLOBAL);
+        cache.put(FIRST, SHARED, cache.getGeneration(SHARED), new byte[]{1}, 0);
+        Thread.sleep(40);
+        assertNull(cache.get(FIRST, SHARED));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidate_byDeviceAndByCharacteristic() {
+        cache.configure(PRIVATE, 60000, CacheScope.DEVICE);
+        cache.put(FIRST, PRIVATE, cache.getGeneration(PRIVATE), new byte[]{1}, 0);
+        cache.put(SECOND, PRIVATE, cache.getGeneration(PRIVATE), new byte[]{2}, 0);
+        cache.invalidate(FIRST, PRIVATE);
+        assertNull(cache.get(FIRST, PRIVATE));
+        assertArrayEquals(new byte[]{2}, cache.get(SECOND, PRIVATE));
+        cache.put(FIRST, PRIVATE, cache.getGeneration(PRIVATE), new byte[]{1}, 0);
+        cache.removeDevice(SECOND);
+        assertEquals(1, cache.size());
+        cache.invalidate(PRIVATE);
+        assertEquals(0, cache.size());
+        assertTrue(cache.isCached(PRIVATE));
+    }
+
+    @Test
+    public void configure_discardsEntries() {
+        cache.configure(SHARED, 60000, CacheScope.GLOBAL);
+        cache.put(FIRST, SHARED, cache.getGeneration(SHARED), new byte[]{1}, 0);
+        cache.configure(SHARED, 60000, CacheScope.DEVICE);
+        assertNull(cache.get(FIRST, SHARED));
+        cache.configure(SHARED, 0, CacheScope.DEVICE);
+        assertFalse(cache.isCached(SHARED));
+    }
+
+    @Test
+    public void invalidateDuringLoad_dropsValue() {
+        cache.configure(PRIVATE, 60000, CacheScope.DEVICE);
+        long generation = cache.getGeneration(PRIVATE);
+        //另一个设备的失效同样使正在得到的值作废
+        cache.invalidate(SECOND, PRIVATE);
+        cache.put(FIRST, PRIVATE, generation, new byte[]{1}, 0);
+        assertNull(cache.get(FIRST, PRIVATE));
+        generation = cache.getGeneration(PRIVATE);
+        cache.clear();
+        cache.put(FIRST, PRIVATE, generation, new byte[]{1}, 0);
+        assertEquals(0, cache.size());
+        //重新配置后之前的代数不再有效
+        generation = cache.getGeneration(PRIVATE);
+        cache.configure(PRIVATE, 0, CacheScope.DEVICE);
+        cache.configure(PRIVATE, 60000, CacheScope.DEVICE);
+        cache.put(FIRST, PRIVATE, generation, new byte[]{1}, 0);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void savedTime_sumsLoadTimeOfHits() {
+        cache.configure(SHARED, 60000, CacheScope.GLOBAL);
+        cache.put(FIRST, SHARED, cache.getGeneration(SHARED), new byte[]{1}, 3000000);
+        cache.get(FIRST, SHARED);
+        cache.get(SECOND, SHARED);
+        assertEquals(6, cache.getSavedTime());
+        assertEquals(1.0, cache.getHitRatio(), 0);
+    }
+}
@@ -0,0 +1,55 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * 请求号的编码、分配与回绕
+ */
+public class RequestIdsTest {
+    @Test
+    public void readWrite_byVersion() {
+        byte[] pack = new byte[2];
+        RequestIds.write(pack, RequestIds.getLength(RequestIds.VERSION_2), 0xABCD);
+        assertArrayEquals(new byte[]{(byte) 0xAB, (byte) 0xCD}, pack);
+        assertEquals(0xABCD, RequestIds.read(pack, 2));
+        RequestIds.write(pack, RequestIds.getLength(RequestIds.VERSION_1), 0xFE);
+        assertEquals(0xFE, RequestIds.read(pack, 1));
+    }
+
+    @Test
+    public void acquire_skipsInFlightIdsAfterWrap() throws Exception {
+        RequestIds ids = new RequestIds(RequestIds.VERSION_1);
+        assertTrue(ids.tryAcquire(0));
+        assertFalse(ids.tryAcquire(0));
+        for (int i = 1; i < 256; i++) {
+            assertEquals(i, ids.acquire());
+        }
+        try {
+            ids.acquire();
+            fail();
+        } catch (Exception ignored) {
+        }
+        ids.release(7);
+        ids.release(3);
+        //从上次分配的位置之后查找，回绕后得到最小的空闲请求号
+        assertEquals(3, ids.acquire());
+        assertEquals(7, ids.acquire());
+        assertEquals(256, ids.getInFlightCount());
+    }
+
+    @Test
+    public void version2_hasTwoByteIds() throws Exception {
+        RequestIds ids = new RequestIds(RequestIds.VERSION_2);
+        assertEquals(2, ids.getIdLength());
+        assertTrue(ids.tryAcquire(0xFFFF));
+        assertFalse(ids.tryAcquire(0x10000));
+        ids.release(0xFFFF);
+        assertEquals(0, ids.getInFlightCount());
+    }
+}
@@ -0,0 +1,116 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 时间轮的到期、重新计时与取消，使用很小的时间轮使截止时间跨越多圈
+ */
+public class TimeoutWheelTest {
+    //10毫秒一格，8格一圈，一圈80毫秒
+    private final TimeoutWheel wheel = new TimeoutWheel(10, 8);
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void deadlineLongerThanOneRotation_firesOnTime() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.newTimeout(250, () -> {
+            firedAt.set(System.nanoTime());
+            fired.countDown();
+        });
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start);
+        //跨越了三圈，不能在经过截止时间所在的槽位时提前到期
+        assertTrue("fired after " + elapsed + "ms", elapsed >= 250);
+        assertTrue("fired after " + elapsed + "ms", elapsed < 1000);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void touch_extendsDeadline() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        TimeoutWheel.Timeout timeout = wheel.newTimeout(100, () -> {
+            firedAt.set(System.nanoTime());
+            fired.countDown();
+        });
+        Thread.sleep(60);
+        long touchedAt = System.nanoTime();
+        timeout.touch(200);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt.get() - touchedAt);
+        assertTrue("fired " + elapsed + "ms after touch", elapsed >= 200);
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void touchJustBeforeDeadline_firesAfterNewDeadline() throws Exception {
+        //在第50毫秒的槽位检查时，新的截止时间与它相差整圈，挪动后会落回正在检查的槽位
+        long[] extensions = {88, 168, 248};
+        CountDownLatch fired = new CountDownLatch(extensions.length);
+        long[] touchedAt = new long[extensions.length];
+        long[] firedAt = new long[extensions.length];
+        TimeoutWheel.Timeout[] timeouts = new TimeoutWheel.Timeout[extensions.length];
+        for (int i = 0; i < extensions.length; i++) {
+            int index = i;
+            timeouts[i] = wheel.newTimeout(50, () -> {
+                firedAt[index] = System.nanoTime();
+                fired.countDown();
+            });
+        }
+        Thread.sleep(45);
+        for (int i = 0; i < extensions.length; i++) {
+            touchedAt[i] = System.nanoTime();
+            timeouts[i].touch(extensions[i]);
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < extensions.length; i++) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt[i] - touchedAt[i]);
+            assertTrue("fired " + elapsed + "ms after touch(" + extensions[i] + ")", elapsed >= extensions[i]);
+            //不会晚一整圈
+            assertTrue("fired " + elapsed + "ms after touch(" + extensions[i] + ")", elapsed < extensions[i] + 60);
+        }
+    }
+
+    @Test
+    public void cancel_fromInsideTask() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicReference<TimeoutWheel.Timeout> first = new AtomicReference<>();
+        AtomicReference<TimeoutWheel.Timeout> second = new AtomicReference<>();
+        CountDownLatch fired = new CountDownLatch(1);
+        //同一格到期的两个任务互相取消，只有先执行的一个会运行
+        first.set(wheel.newTimeout(30, () -> {
+            runs.incrementAndGet();
+            second.get().cancel();
+            fired.countDown();
+        }));
+        second.set(wheel.newTimeout(30, () -> {
+            runs.incrementAndGet();
+            first.get().cancel();
+            fired.countDown();
+        }));
+        //到期的任务取消一个还没到期的任务
+        TimeoutWheel.Timeout later = wheel.newTimeout(300, runs::incrementAndGet);
+        wheel.newTimeout(50, later::cancel);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(1, runs.get());
+        assertTrue(later.isCancelled());
+        assertEquals(0, wheel.getPendingCount());
+    }
+}
@@ -0,0 +1,76 @@
+package com.bleex.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.UUID;
+
+/**
+ * 中断传输的保存、替换与按个数、总长度、时间的丢弃
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TransferStoreTest {
+    private static final UUID SERVICE = UUID.fromString("0000ff00-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+    private static final String ADDRESS = "11:22:33:44:55:66";
+
+    private final TimeoutWheel timeoutWheel = new TimeoutWheel(10, 64);
+    private final TransferStore store = new TransferStore();
+
+    @After
+    public void tearDown() {
+        store.clear();
+        timeoutWheel.stop();
+    }
+
+    private BytesReceiver receiver(int requestId) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        return new BytesReceiver(requestId, requestId, 1, device, SERVICE, CHARACTERISTIC, timeoutWheel);
+    }
+
+    @Test
+    public void put_replacesSameTransfer() {
+        BytesReceiver first = receiver(1);
+        BytesReceiver second = receiver(2);
+        store.put(ADDRESS, 7, first, 100);
+        store.put(ADDRESS, 7, second, 40);
+        assertEquals(1, store.size());
+        assertEquals(40, store.getBytes());
+        assertNull(store.remove("66:55:44:33:22:11", 7));
+        assertSame(second, store.remove(ADDRESS, 7));
+        assertEquals(0, store.getBytes());
+    }
+
+    @Test
+    public void limits_evictEarliestFirst() {
+        BytesReceiver[] receivers = new BytesReceiver[4];
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = receiver(i);
+            store.put(ADDRESS, i, receivers[i], 100);
+        }
+        store.setMaxTransfers(3);
+        assertNull(store.remove(ADDRESS, 0));
+        store.setMaxBytes(150);
+        assertEquals(1, store.size());
+        assertSame(receivers[3], store.remove(ADDRESS, 3));
+    }
+
+    @Test
+    public void expiredTransfer_isDiscarded() throws Exception {
+        store.setExpireTime(20);
+        store.put(ADDRESS, 1, receiver(1), 100);
+        Thread.sleep(40);
+        assertEquals(0, store.getOffset(ADDRESS, 1));
+        assertNull(store.remove(ADDRESS, 1));
+        assertEquals(0, store.size());
+    }
+}